@@ -0,0 +1,640 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Int-indexed form of a trained model: parts of speech are interned to contiguous ids, transitions
+ * are held in a dense matrix of log probabilities and words are interned in a compact Vocabulary whose ids
+ * index emission rows stored in compressed sparse row form (only observed tags take up space).
+ *
+ * A word's emission score for a tag is its row entry minus that tag's normalizer. Models compiled from raw
+ * counts keep log counts in the rows and the log of each tag's total count as its normalizer, so a change
+ * to one tag's total never touches any row. Models compiled from probabilities use normalizers of 0.
+ *
+ * The rows of the most frequent words are also kept ready-made as dense, normalized vectors, so looking one of
+ * them up costs a single hash probe and no copying. Models compiled from counts give the lowest vocabulary
+ * ids to the most frequent words, and saving keeps that order, so the hot words are simply the first ids.
+ *
+ * A model never changes once built. update() derives a new model that shares every row the change didn't
+ * touch; rows that did change sit as dense rows in a small overlay in front of the shared ones.
+ */
+public class CompiledModel implements TaggingModel {
+
+    // first four bytes of a saved model, "HMMT"
+    private static final int MAGIC = 0x484D4D54;
+    // version of the saved model layout, bumped whenever it changes
+    private static final int VERSION = 2;
+    // the overlay is folded into the shared rows once it holds more than this fraction of them
+    private static final int OVERLAY_FRACTION = 8;
+    // number of most frequent words whose normalized emission vectors are precomputed
+    private static final int HOT_WORDS = 1024;
+
+    // part of speech names, indexed by their id
+    private final String[] tagNames;
+    // maps part of speech names back to their ids
+    private final Map<String,Integer> tagIds;
+    // transition log probabilities laid out row by row: transitions[from * numTags + to], -Infinity if never seen
+    private final double[] transitions;
+    // the shared rows below are shared between models derived from one another, so never modified
+    // every word with a shared emission row, its id indexing rowStarts
+    private final Vocabulary vocabulary;
+    // word k's observed tags run from rowStarts[k] to rowStarts[k + 1] in the entry arrays
+    private final int[] rowStarts;
+    // tag id and row entry of every observed (word, tag) pair
+    private final int[] entryTags;
+    private final double[] entryValues;
+    // number of times each word was seen in training, 0 where unknown (models compiled from probabilities)
+    private final int[] wordCounts;
+    // dense rows changed since the shared rows were built, one entry per tag (-Infinity where never seen), checked first
+    private final Map<String,double[]> overlay;
+    // subtracted from every row entry of a tag to turn it into a log probability
+    private final double[] tagNorms;
+    // ready-made emission vectors of the words with the lowest ids, unseen tags filled with the unseen word penalty
+    private final double[][] hotRows;
+    // unseen word penalty
+    private final double unobserved;
+    // emission row used for unknown words, every tag scored with the unseen word penalty
+    private final double[] unobservedRow;
+    // id of the start state #
+    private final int start;
+
+    /**
+     * Compiles the normalized maps produced by normalizeWordToPOS and normalizePOSToTransition
+     */
+    public CompiledModel(Map<String,Map<String,Double>> wordToPOS, Map<String,Map<String,Double>> POStoTransition, double unobserved) {
+        this.unobserved = unobserved;
+        tagIds = new HashMap<>();
+        // the start state always gets id 0
+        intern("#");
+        // intern every tag that appears on either side of a transition or as an observation
+        for (String curTag : POStoTransition.keySet()) {
+            intern(curTag);
+            for (String nextTag : POStoTransition.get(curTag).keySet()) {
+                intern(nextTag);
+            }
+        }
+        for (Map<String,Double> observed : wordToPOS.values()) {
+            for (String tag : observed.keySet()) {
+                intern(tag);
+            }
+        }
+        tagNames = tagNames(tagIds);
+        int numTags = tagNames.length;
+        start = tagIds.get("#");
+        // fill in the transition matrix, leaving unseen transitions impossible
+        transitions = new double[numTags * numTags];
+        Arrays.fill(transitions, Double.NEGATIVE_INFINITY);
+        for (String curTag : POStoTransition.keySet()) {
+            int row = tagIds.get(curTag) * numTags;
+            for (Map.Entry<String,Double> next : POStoTransition.get(curTag).entrySet()) {
+                transitions[row + tagIds.get(next.getKey())] = next.getValue();
+            }
+        }
+        // build the emission rows, already normalized
+        Rows rows = new Rows();
+        for (Map.Entry<String,Map<String,Double>> word : wordToPOS.entrySet()) {
+            // probabilities don't say how often a word was seen
+            rows.startWord(word.getKey(), 0);
+            for (Map.Entry<String,Double> observed : word.getValue().entrySet()) {
+                rows.entry(tagIds.get(observed.getKey()), observed.getValue());
+            }
+        }
+        vocabulary = rows.vocabulary;
+        rowStarts = rows.rowStarts();
+        entryTags = rows.entryTags();
+        entryValues = rows.entryValues();
+        wordCounts = rows.wordCounts();
+        overlay = new HashMap<>();
+        tagNorms = new double[numTags];
+        unobservedRow = new double[numTags];
+        Arrays.fill(unobservedRow, unobserved);
+        hotRows = hotRows();
+    }
+
+    /**
+     * Compiles raw training counts, keeping log counts in the emission rows so the model can later be updated
+     */
+    public CompiledModel(TrainingCounts counts, double unobserved) {
+        this.unobserved = unobserved;
+        // tags keep the ids they were counted under, so # is 0
+        tagIds = new HashMap<>();
+        for (int tag = 0; tag < counts.numTags(); tag++) {
+            intern(counts.tagName(tag));
+        }
+        tagNames = tagNames(tagIds);
+        int numTags = tagNames.length;
+        start = tagIds.get("#");
+        transitions = new double[numTags * numTags];
+        for (int curTag = 0; curTag < numTags; curTag++) {
+            transitionRow(counts, curTag, numTags, transitions);
+        }
+        // build the emission rows from log counts, most frequent words first
+        Rows rows = new Rows();
+        int[] totals = wordTotals(counts);
+        for (int word : byFrequency(totals)) {
+            rows.startWord(counts.word(word), totals[word]);
+            for (int k = 0; k < counts.observedTags(word); k++) {
+                rows.entry(counts.observedTag(word, k), Math.log(counts.observedCount(word, k)));
+            }
+        }
+        vocabulary = rows.vocabulary;
+        rowStarts = rows.rowStarts();
+        entryTags = rows.entryTags();
+        entryValues = rows.entryValues();
+        wordCounts = rows.wordCounts();
+        overlay = new HashMap<>();
+        tagNorms = tagNorms(counts, tagNames);
+        unobservedRow = new double[numTags];
+        Arrays.fill(unobservedRow, unobserved);
+        hotRows = hotRows();
+    }
+
+    /**
+     * Constructor used when loading a saved model or deriving an updated one, where tags already have their ids
+     */
+    private CompiledModel(String[] tagNames, double[] transitions, Vocabulary vocabulary, int[] rowStarts, int[] entryTags,
+                          double[] entryValues, int[] wordCounts, Map<String,double[]> overlay, double[] tagNorms, double unobserved) {
+        this.tagNames = tagNames;
+        this.transitions = transitions;
+        this.vocabulary = vocabulary;
+        this.rowStarts = rowStarts;
+        this.entryTags = entryTags;
+        this.entryValues = entryValues;
+        this.wordCounts = wordCounts;
+        this.overlay = overlay;
+        this.tagNorms = tagNorms;
+        this.unobserved = unobserved;
+        tagIds = new HashMap<>();
+        for (String tag : tagNames) {
+            intern(tag);
+        }
+        start = tagIds.get("#");
+        unobservedRow = new double[tagNames.length];
+        Arrays.fill(unobservedRow, unobserved);
+        hotRows = hotRows();
+    }
+
+    /**
+     * Derives the model for the given counts, assuming they only differ from the ones this model was compiled
+     * from in the emissions of changedWords and the transitions out of changedTags (tag totals may differ
+     * freely). Only those rows are recomputed; all others are shared with this model. If the counts contain
+     * a tag this model has never seen, the whole model is recompiled.
+     */
+    public CompiledModel update(TrainingCounts counts, Collection<String> changedWords, Collection<String> changedTags) {
+        if (counts.numTags() != tagNames.length) {
+            return new CompiledModel(counts, unobserved);
+        }
+        int numTags = tagNames.length;
+        // recompute the changed transition rows
+        double[] newTransitions = transitions.clone();
+        for (String curTag : changedTags) {
+            transitionRow(counts, counts.tagId(curTag), numTags, newTransitions);
+        }
+        // recompute the changed emission rows into a copy of the overlay
+        Map<String,double[]> newOverlay = new HashMap<>(overlay);
+        for (String word : changedWords) {
+            int id = counts.wordId(word);
+            if (id >= 0) {
+                newOverlay.put(word, row(counts, id, numTags));
+            }
+        }
+        double[] newTagNorms = tagNorms(counts, tagNames);
+        if (newOverlay.size() <= vocabulary.size() / OVERLAY_FRACTION) {
+            return new CompiledModel(tagNames, newTransitions, vocabulary, rowStarts, entryTags, entryValues, wordCounts, newOverlay, newTagNorms, unobserved);
+        }
+        // fold a large overlay back into a fresh set of shared rows
+        Rows rows = new Rows();
+        double[] scratch = new double[numTags];
+        Set<String> words = words();
+        words.addAll(newOverlay.keySet());
+        for (String word : words) {
+            double[] row = newOverlay.containsKey(word) ? newOverlay.get(word) : row(word, scratch);
+            rows.startWord(word, newOverlay.containsKey(word) ? total(newOverlay.get(word)) : count(word));
+            for (int tag = 0; tag < numTags; tag++) {
+                if (row[tag] != Double.NEGATIVE_INFINITY) {
+                    rows.entry(tag, row[tag]);
+                }
+            }
+        }
+        return new CompiledModel(tagNames, newTransitions, rows.vocabulary, rows.rowStarts(), rows.entryTags(), rows.entryValues(), rows.wordCounts(),
+                new HashMap<>(), newTagNorms, unobserved);
+    }
+
+    /**
+     * Collects emission rows in compressed sparse row form, one word at a time
+     */
+    private static class Rows {
+        // words in the order they were started
+        final Vocabulary vocabulary = new Vocabulary();
+        // growing versions of the row and entry arrays
+        private int[] rowStarts = new int[1024];
+        private int[] entryTags = new int[1024];
+        private double[] entryValues = new double[1024];
+        private int[] wordCounts = new int[1024];
+        private int numEntries;
+
+        /**
+         * Starts a new word's row; the word must not have been started before
+         */
+        void startWord(String word, int count) {
+            int id = vocabulary.add(word);
+            if (id + 2 > rowStarts.length) {
+                rowStarts = Arrays.copyOf(rowStarts, rowStarts.length * 2);
+                wordCounts = Arrays.copyOf(wordCounts, rowStarts.length);
+            }
+            wordCounts[id] = count;
+            rowStarts[id] = numEntries;
+            rowStarts[id + 1] = numEntries;
+        }
+
+        /**
+         * Adds an observed tag to the word started last
+         */
+        void entry(int tag, double value) {
+            if (numEntries == entryTags.length) {
+                entryTags = Arrays.copyOf(entryTags, numEntries * 2);
+                entryValues = Arrays.copyOf(entryValues, numEntries * 2);
+            }
+            entryTags[numEntries] = tag;
+            entryValues[numEntries] = value;
+            numEntries++;
+            rowStarts[vocabulary.size()] = numEntries;
+        }
+
+        int[] rowStarts() {
+            return Arrays.copyOf(rowStarts, vocabulary.size() + 1);
+        }
+
+        int[] entryTags() {
+            return Arrays.copyOf(entryTags, numEntries);
+        }
+
+        double[] entryValues() {
+            return Arrays.copyOf(entryValues, numEntries);
+        }
+
+        int[] wordCounts() {
+            return Arrays.copyOf(wordCounts, vocabulary.size());
+        }
+    }
+
+    /**
+     * Tag names in id order
+     */
+    private static String[] tagNames(Map<String,Integer> tagIds) {
+        String[] tagNames = new String[tagIds.size()];
+        for (Map.Entry<String,Integer> entry : tagIds.entrySet()) {
+            tagNames[entry.getValue()] = entry.getKey();
+        }
+        return tagNames;
+    }
+
+    /**
+     * Number of times each counted word was seen, under any tag
+     */
+    private static int[] wordTotals(TrainingCounts counts) {
+        int[] totals = new int[counts.numWords()];
+        for (int word = 0; word < totals.length; word++) {
+            for (int k = 0; k < counts.observedTags(word); k++) {
+                totals[word] += counts.observedCount(word, k);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Number of times a word was seen, from an overlay row of log counts
+     */
+    private static int total(double[] row) {
+        double total = 0;
+        for (double entry : row) {
+            total += Math.exp(entry);
+        }
+        return (int) Math.round(total);
+    }
+
+    /**
+     * Word ids ordered by their totals, most frequent first and in id order among equally frequent ones
+     */
+    private static int[] byFrequency(int[] totals) {
+        // sort (inverted frequency, id) pairs packed into longs
+        long[] keys = new long[totals.length];
+        for (int word = 0; word < keys.length; word++) {
+            keys[word] = (long) (Integer.MAX_VALUE - totals[word]) << 32 | word;
+        }
+        Arrays.sort(keys);
+        int[] words = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            words[k] = (int) keys[k];
+        }
+        return words;
+    }
+
+    /**
+     * Precomputes the normalized emission vectors of the first HOT_WORDS vocabulary ids
+     */
+    private double[][] hotRows() {
+        double[][] hot = new double[Math.min(HOT_WORDS, vocabulary.size())][];
+        for (int id = 0; id < hot.length; id++) {
+            hot[id] = new double[tagNames.length];
+            spread(id, hot[id]);
+        }
+        return hot;
+    }
+
+    /**
+     * Writes a shared row's normalized entries over a vector of unseen word penalties
+     */
+    private void spread(int id, double[] scratch) {
+        Arrays.fill(scratch, unobserved);
+        for (int entry = rowStarts[id]; entry < rowStarts[id + 1]; entry++) {
+            int tag = entryTags[entry];
+            scratch[tag] = entryValues[entry] - tagNorms[tag];
+        }
+    }
+
+    /**
+     * Dense emission row of log counts for a counted word
+     */
+    private static double[] row(TrainingCounts counts, int word, int numTags) {
+        double[] row = new double[numTags];
+        Arrays.fill(row, Double.NEGATIVE_INFINITY);
+        for (int k = 0; k < counts.observedTags(word); k++) {
+            row[counts.observedTag(word, k)] = Math.log(counts.observedCount(word, k));
+        }
+        return row;
+    }
+
+    /**
+     * Fills in one tag's row of the transition matrix from its transition counts
+     */
+    private static void transitionRow(TrainingCounts counts, int curTag, int numTags, double[] transitions) {
+        int row = curTag * numTags;
+        // add up every transition out of the tag and normalize each of them by that total
+        long totalFreq = 0;
+        for (int nextTag = 0; nextTag < numTags; nextTag++) {
+            totalFreq += counts.transitionCount(curTag, nextTag);
+        }
+        for (int nextTag = 0; nextTag < numTags; nextTag++) {
+            int freq = counts.transitionCount(curTag, nextTag);
+            transitions[row + nextTag] = freq == 0 ? Double.NEGATIVE_INFINITY : Math.log((double) freq / totalFreq);
+        }
+    }
+
+    /**
+     * Log of every tag's total count, in id order
+     */
+    private static double[] tagNorms(TrainingCounts counts, String[] tagNames) {
+        double[] tagNorms = new double[tagNames.length];
+        for (int tag = 0; tag < tagNames.length; tag++) {
+            tagNorms[tag] = Math.log(Math.max(1, counts.tagCount(tag)));
+        }
+        return tagNorms;
+    }
+
+    /**
+     * Writes the model to a compact binary file: a header, the tagset, the transition matrix and then the
+     * observed emission log probabilities of every word (unobserved entries are left out)
+     */
+    public void save(Path file) throws IOException {
+        Set<String> words = words();
+        double[] scratch = new double[tagNames.length];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(unobserved);
+            // tagset, in id order
+            out.writeInt(tagNames.length);
+            for (String tag : tagNames) {
+                out.writeUTF(tag);
+            }
+            // transition matrix, row by row
+            for (double transition : transitions) {
+                out.writeDouble(transition);
+            }
+            // vocabulary with each word's observed tags
+            out.writeInt(words.size());
+            for (String word : words) {
+                double[] row = row(word, scratch);
+                int observed = 0;
+                for (double entry : row) {
+                    if (entry != Double.NEGATIVE_INFINITY) {
+                        observed++;
+                    }
+                }
+                out.writeUTF(word);
+                out.writeInt(count(word));
+                out.writeInt(observed);
+                for (int tag = 0; tag < row.length; tag++) {
+                    if (row[tag] != Double.NEGATIVE_INFINITY) {
+                        out.writeInt(tag);
+                        out.writeDouble(row[tag] - tagNorms[tag]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a model written by save(), rejecting one whose tag ids or counts don't fit its tagset with an
+     * IOException
+     */
+    public static CompiledModel load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a model file: " + file);
+            }
+            int version = in.readInt();
+            // version 1 files carry no word counts
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported model version " + version + " in " + file);
+            }
+            double unobserved = in.readDouble();
+            // tagset
+            int numTags = in.readInt();
+            if (numTags < 1) {
+                throw new IOException("Corrupt model file, " + numTags + " tags: " + file);
+            }
+            String[] tagNames = new String[numTags];
+            for (int tag = 0; tag < tagNames.length; tag++) {
+                tagNames[tag] = in.readUTF();
+            }
+            if (!Arrays.asList(tagNames).contains("#")) {
+                throw new IOException("Corrupt model file, no start tag #: " + file);
+            }
+            // transition matrix
+            double[] transitions = new double[tagNames.length * tagNames.length];
+            for (int k = 0; k < transitions.length; k++) {
+                transitions[k] = in.readDouble();
+            }
+            // vocabulary, the saved log probabilities need no normalizing
+            int numWords = in.readInt();
+            Rows rows = new Rows();
+            for (int k = 0; k < numWords; k++) {
+                String word = in.readUTF();
+                rows.startWord(word, version == 1 ? 0 : in.readInt());
+                int observed = in.readInt();
+                if (observed < 0 || observed > tagNames.length) {
+                    throw new IOException("Corrupt model file, " + observed + " observed tags for " + word + ": " + file);
+                }
+                for (int j = 0; j < observed; j++) {
+                    int tag = in.readInt();
+                    if (tag < 0 || tag >= tagNames.length) {
+                        throw new IOException("Corrupt model file, tag id " + tag + " for " + word + ": " + file);
+                    }
+                    rows.entry(tag, in.readDouble());
+                }
+            }
+            return new CompiledModel(tagNames, transitions, rows.vocabulary, rows.rowStarts(), rows.entryTags(), rows.entryValues(), rows.wordCounts(),
+                    new HashMap<>(), new double[tagNames.length], unobserved);
+        }
+    }
+
+    /**
+     * Number of times a word was seen in training, 0 if it never was or the model doesn't know
+     */
+    int count(String word) {
+        double[] row = overlay.get(word);
+        if (row != null) {
+            return total(row);
+        }
+        int id = vocabulary.id(word);
+        return id < 0 ? 0 : wordCounts[id];
+    }
+
+    /**
+     * Gives a tag the next free id if it doesn't have one yet
+     */
+    private void intern(String tag) {
+        if (!tagIds.containsKey(tag)) {
+            tagIds.put(tag, tagIds.size());
+        }
+    }
+
+    /**
+     * A word's current emission row before normalizing, one entry per tag (-Infinity where never seen),
+     * either from the overlay or written into scratch; null if the word was never seen
+     */
+    private double[] row(String word, double[] scratch) {
+        double[] row = overlay.get(word);
+        if (row != null) {
+            return row;
+        }
+        int id = vocabulary.id(word);
+        if (id < 0) {
+            return null;
+        }
+        Arrays.fill(scratch, Double.NEGATIVE_INFINITY);
+        for (int entry = rowStarts[id]; entry < rowStarts[id + 1]; entry++) {
+            scratch[entryTags[entry]] = entryValues[entry];
+        }
+        return scratch;
+    }
+
+    @Override
+    public int numTags() {
+        return tagNames.length;
+    }
+
+    @Override
+    public int startTag() {
+        return start;
+    }
+
+    @Override
+    public String tagName(int tag) {
+        return tagNames[tag];
+    }
+
+    @Override
+    public int tagId(String tag) {
+        Integer id = tagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public double[] transitions() {
+        return transitions;
+    }
+
+    @Override
+    public double[] emissions(String word, double[] scratch) {
+        double[] row = overlay.isEmpty() ? null : overlay.get(word);
+        if (row != null) {
+            // normalize the observed entries and fill the rest with the unseen word penalty
+            for (int tag = 0; tag < row.length; tag++) {
+                scratch[tag] = row[tag] == Double.NEGATIVE_INFINITY ? unobserved : row[tag] - tagNorms[tag];
+            }
+            return scratch;
+        }
+        int id = vocabulary.id(word);
+        if (id < 0) {
+            return unobservedRow;
+        }
+        // frequent words are ready-made, the rest are spread into the scratch row
+        if (id < hotRows.length) {
+            return hotRows[id];
+        }
+        spread(id, scratch);
+        return scratch;
+    }
+
+    @Override
+    public int observedTags(String word, int minCount, int[] candidates) {
+        double[] row = overlay.isEmpty() ? null : overlay.get(word);
+        if (row != null) {
+            if (total(row) < minCount) {
+                return -1;
+            }
+            int observed = 0;
+            for (int tag = 0; tag < row.length; tag++) {
+                if (row[tag] != Double.NEGATIVE_INFINITY) {
+                    candidates[observed++] = tag;
+                }
+            }
+            return observed;
+        }
+        int id = vocabulary.id(word);
+        if (id < 0 || wordCounts[id] < minCount) {
+            return -1;
+        }
+        int from = rowStarts[id];
+        System.arraycopy(entryTags, from, candidates, 0, rowStarts[id + 1] - from);
+        return rowStarts[id + 1] - from;
+    }
+
+    @Override
+    public boolean isUnobserved(double[] emission) {
+        // unknown words always get the shared row
+        return emission == unobservedRow;
+    }
+
+    /**
+     * Unseen word penalty the model was compiled with
+     */
+    double unobserved() {
+        return unobserved;
+    }
+
+    /**
+     * Every word in the vocabulary, for writing the model out in other layouts
+     */
+    Set<String> words() {
+        Set<String> words = new LinkedHashSet<>();
+        for (int id = 0; id < vocabulary.size(); id++) {
+            words.add(vocabulary.word(id));
+        }
+        words.addAll(overlay.keySet());
+        return words;
+    }
+}
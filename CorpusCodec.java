@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompressor for corpus files in some compressed format. Gzip is built in; other codecs are picked up
+ * from the class path through ServiceLoader (list the class in META-INF/services/CorpusCodec) or added
+ * with CorpusFiles.register(). Implementations need a public no-argument constructor to be loaded as services.
+ */
+public interface CorpusCodec {
+
+    /**
+     * Short name used to ask for the codec explicitly, such as "gzip"
+     */
+    String name();
+
+    /**
+     * File name extension the codec is picked for, including the dot, such as ".gz"
+     */
+    String extension();
+
+    /**
+     * Wraps a stream of compressed bytes in a stream of the decompressed ones
+     */
+    InputStream decode(InputStream compressed) throws IOException;
+}
@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens corpus files for reading, decompressing them on the fly when their name ends in a codec's extension.
+ * Setting the hmm.codec system property to a codec's name forces that codec for every file instead.
+ *
+ * Compressed files are decompressed on a background thread a few chunks ahead of the reader, so inflating
+ * overlaps with counting or decoding instead of adding to it. Plain files are read directly.
+ */
+public class CorpusFiles {
+
+    // system property naming a codec to use regardless of file names, "none" for plain files
+    public static final String CODEC_PROPERTY = "hmm.codec";
+    // size of each decompressed chunk handed from the background thread to the reader
+    private static final int CHUNK_BYTES = 1 << 16;
+    // number of decompressed chunks the background thread may get ahead by
+    private static final int CHUNKS_AHEAD = 4;
+
+    // every known codec by name
+    private static final Map<String,CorpusCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new CorpusCodec() {
+            @Override
+            public String name() {
+                return "gzip";
+            }
+
+            @Override
+            public String extension() {
+                return ".gz";
+            }
+
+            @Override
+            public InputStream decode(InputStream compressed) throws IOException {
+                return new GZIPInputStream(compressed, CHUNK_BYTES);
+            }
+        });
+        for (CorpusCodec codec : ServiceLoader.load(CorpusCodec.class)) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Makes a codec available by name and extension, replacing any codec with the same name
+     */
+    public static void register(CorpusCodec codec) {
+        CODECS.put(codec.name(), codec);
+    }
+
+    /**
+     * Opens a corpus file, picking a codec by the hmm.codec property or else by the file's extension.
+     * Throws FileNotFoundException if the file can't be opened, just like FileReader.
+     */
+    public static BufferedReader open(String fileName) throws IOException {
+        return open(fileName, codecFor(fileName));
+    }
+
+    /**
+     * Opens a corpus file with the given codec, or as plain text if codec is null
+     */
+    public static BufferedReader open(String fileName, CorpusCodec codec) throws IOException {
+        InputStream file = new FileInputStream(fileName);
+        if (codec == null) {
+            return new BufferedReader(new InputStreamReader(file, Charset.defaultCharset()));
+        }
+        InputStream decoded;
+        try {
+            decoded = codec.decode(file);
+        }
+        catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(new ReadAheadStream(decoded), Charset.defaultCharset()));
+    }
+
+    /**
+     * Codec a file would be opened with, or null for plain text
+     */
+    public static CorpusCodec codecFor(String fileName) {
+        String forced = System.getProperty(CODEC_PROPERTY);
+        if (forced != null) {
+            if (forced.equals("none")) {
+                return null;
+            }
+            CorpusCodec codec = CODECS.get(forced);
+            if (codec == null) {
+                throw new IllegalArgumentException("Unknown codec " + forced + ", known codecs are " + CODECS.keySet());
+            }
+            return codec;
+        }
+        // the longest matching extension wins, so .tar.gz beats .gz whatever order the codecs were registered in;
+        // codecs sharing an extension are told apart by name
+        CorpusCodec best = null;
+        for (CorpusCodec codec : CODECS.values()) {
+            if (!fileName.endsWith(codec.extension())) {
+                continue;
+            }
+            if (best == null || codec.extension().length() > best.extension().length()
+                    || (codec.extension().length() == best.extension().length() && codec.name().compareTo(best.name()) < 0)) {
+                best = codec;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stream that drains another one on a background thread, keeping up to CHUNKS_AHEAD chunks ready
+     */
+    private static class ReadAheadStream extends InputStream {
+
+        // chunk marking the end of the source
+        private static final byte[] END = new byte[0];
+
+        // stream being drained
+        private final InputStream source;
+        // chunks read from the source but not yet handed out
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+        // thread draining the source
+        private final Thread reader;
+        // error that stopped the background thread, rethrown once the chunks before it are used up
+        private volatile IOException error;
+        // chunk being handed out and the position in it
+        private byte[] chunk;
+        private int position;
+
+        ReadAheadStream(InputStream source) {
+            this.source = source;
+            reader = new Thread(this::drain, "corpus-read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Body of the background thread: reads the source chunk by chunk until it runs out, fails or the stream
+         * is closed, and unless closed always finishes by posting END
+         */
+        private void drain() {
+            try {
+                while (true) {
+                    byte[] buffer = new byte[CHUNK_BYTES];
+                    int filled = source.readNBytes(buffer, 0, buffer.length);
+                    if (filled > 0) {
+                        chunks.put(filled == buffer.length ? buffer : Arrays.copyOf(buffer, filled));
+                    }
+                    if (filled < buffer.length) {
+                        break;
+                    }
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            // a codec from the service loader may fail any way it likes; the reader still has to see the end
+            catch (RuntimeException e) {
+                error = new IOException("Decompression failed.", e);
+            }
+            catch (InterruptedException e) {
+                // closed before the source ran out, nobody is waiting for the end
+                return;
+            }
+            try {
+                chunks.put(END);
+            }
+            catch (InterruptedException e) {
+                // closed while the end marker was waiting for room
+            }
+        }
+
+        /**
+         * Moves on to the next chunk if the current one is used up; returns false at the end of the source
+         */
+        private boolean nextChunk() throws IOException {
+            if (chunk != null && position < chunk.length) {
+                return true;
+            }
+            if (chunk == END) {
+                return false;
+            }
+            try {
+                chunk = chunks.take();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for decompressed input.");
+            }
+            position = 0;
+            if (chunk == END) {
+                if (error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // stop the background thread, then release the source
+            reader.interrupt();
+            try {
+                reader.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            source.close();
+        }
+    }
+}
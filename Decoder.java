@@ -0,0 +1,366 @@
+import java.util.Arrays;
+
+/**
+ * Reusable Viterbi decoder over a trained model. Score and backpointer buffers are allocated once and
+ * only grow when a longer sentence arrives, so tagging in steady state produces no garbage.
+ * A decoder is not thread safe; give each thread its own.
+ *
+ * With a beam width K, only the K best scoring states of each lattice column are expanded into the next
+ * one, trading a little accuracy for speed. EXACT keeps every state, which is plain Viterbi.
+ *
+ * With a tag dictionary count N, the column of a word seen at least N times in training only holds the tags
+ * it was seen with, since every other tag would be scored with the unseen word penalty anyway. Rarer and
+ * unknown words keep the whole tagset, as does any column the dictionary would leave unreachable. A restricted
+ * column can also be a dead end, for example a mid-sentence ? whose only tag is . which nothing follows in
+ * training. ALL_TAGS turns the dictionary off.
+ *
+ * Whenever a column can't be reached, the column before it is redone over every tag and without the beam, from
+ * the scores of the column before that. If that still reaches nothing, the column is bridged from the previous
+ * column's best state by emission alone, so every column has a live state and the best path is always
+ * read back from backpointers written for this sentence.
+ *
+ * A decoder given TaggerMetrics records every sentence it decodes there.
+ */
+public class Decoder {
+
+    // beam width that keeps every state
+    public static final int EXACT = Integer.MAX_VALUE;
+    // tag dictionary count that never restricts a column
+    public static final int ALL_TAGS = Integer.MAX_VALUE;
+
+    // model being decoded against
+    private final TaggingModel model;
+    // number of tags in the model, the width of every lattice column
+    private final int numTags;
+    // scores of each state in the previous, current and next column, -Infinity for states that can't be
+    // reached; the previous column is kept so the current one can be redone if it turns out to be a dead end
+    private double[] prevScores;
+    private double[] curScores;
+    private double[] nextScores;
+    // entry i * numTags + tag holds the state that led to tag at word i; only the narrowest array
+    // that can hold every tag id is used (bytes up to 256 tags, shorts up to 65536, ints beyond that)
+    private byte[] byteBackTrack;
+    private short[] shortBackTrack;
+    private int[] intBackTrack;
+    // best sequence of tag ids for the last decoded sentence
+    private int[] path;
+    // room for the model to write a word's emission row into
+    private final double[] emissionScratch;
+    // number of states kept in each column
+    private final int beamWidth;
+    // scores of the live states in a column, sorted to find the beam cutoff
+    private final double[] beamScratch;
+    // minimum training count for a word's column to be restricted to its observed tags
+    private final int tagDictionaryCount;
+    // every tag id in order, the states of an unrestricted column
+    private final int[] allTags;
+    // room for the model to write a word's observed tags into
+    private final int[] candidateScratch;
+    // where decoded sentences are recorded, null for none
+    private final TaggerMetrics metrics;
+
+    public Decoder(TaggingModel model) {
+        this(model, EXACT);
+    }
+
+    public Decoder(TaggingModel model, int beamWidth) {
+        this(model, beamWidth, ALL_TAGS);
+    }
+
+    public Decoder(TaggingModel model, int beamWidth, int tagDictionaryCount) {
+        this(model, beamWidth, tagDictionaryCount, null);
+    }
+
+    public Decoder(TaggingModel model, int beamWidth, int tagDictionaryCount, TaggerMetrics metrics) {
+        if (beamWidth < 1) {
+            throw new IllegalArgumentException("Beam width must be at least 1, got " + beamWidth);
+        }
+        if (tagDictionaryCount < 0) {
+            throw new IllegalArgumentException("Tag dictionary count can't be negative, got " + tagDictionaryCount);
+        }
+        this.model = model;
+        this.beamWidth = beamWidth;
+        this.tagDictionaryCount = tagDictionaryCount;
+        this.metrics = metrics;
+        numTags = model.numTags();
+        prevScores = new double[numTags];
+        curScores = new double[numTags];
+        nextScores = new double[numTags];
+        emissionScratch = new double[numTags];
+        beamScratch = new double[numTags];
+        allTags = new int[numTags];
+        for (int tag = 0; tag < numTags; tag++) {
+            allTags[tag] = tag;
+        }
+        candidateScratch = new int[numTags];
+        // start with room for a typical sentence
+        ensureCapacity(64);
+    }
+
+    /**
+     * Model this decoder decodes against
+     */
+    public TaggingModel model() {
+        return model;
+    }
+
+    /**
+     * Number of states this decoder keeps per lattice column
+     */
+    public int beamWidth() {
+        return beamWidth;
+    }
+
+    /**
+     * Minimum training count for a word's column to be restricted to its observed tags
+     */
+    public int tagDictionaryCount() {
+        return tagDictionaryCount;
+    }
+
+    /**
+     * Sizes the buffers up front so sentences of up to length words decode without growing them
+     */
+    public void reserve(int length) {
+        ensureCapacity(length);
+    }
+
+    /**
+     * Grows the per-word buffers so a sentence of the given length fits
+     */
+    private void ensureCapacity(int length) {
+        if (path != null && path.length >= length) {
+            return;
+        }
+        int capacity = path == null ? length : Math.max(length, path.length * 2);
+        if (numTags <= 1 << 8) {
+            byteBackTrack = new byte[capacity * numTags];
+        }
+        else if (numTags <= 1 << 16) {
+            shortBackTrack = new short[capacity * numTags];
+        }
+        else {
+            intBackTrack = new int[capacity * numTags];
+        }
+        path = new int[capacity];
+    }
+
+    /**
+     * Finds the best sequence of tags for a split sentence. The returned array is owned by the decoder and
+     * is only valid until the next call; its first pieces.length entries are the tag ids of each word.
+     */
+    public int[] decode(String[] pieces) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        int unknownWords = 0;
+        long liveStates = 0;
+        int length = pieces.length;
+        ensureCapacity(length);
+        double[] transitions = model.transitions();
+        double[] prev = prevScores;
+        double[] cur = curScores;
+        double[] next = nextScores;
+        Arrays.fill(cur, Double.NEGATIVE_INFINITY);
+        cur[model.startTag()] = 0.0;
+        // loop over words
+        for (int i = 0; i < length; i++) {
+            // look the word up once, not once per transition
+            double[] emission = model.emissions(pieces[i], emissionScratch);
+            if (metrics != null && model.isUnobserved(emission)) {
+                unknownWords++;
+            }
+            boolean reached = fillColumn(cur, next, transitions, emission, pieces[i], i, true);
+            if (!reached && i > 0 && (tagDictionaryCount != ALL_TAGS || beamWidth < numTags)) {
+                // the previous column was a dead end: redo it over every tag from the column before it, then
+                // try this one again (both emission rows are looked up again since they share the scratch row)
+                fillColumn(prev, cur, transitions, model.emissions(pieces[i - 1], emissionScratch), pieces[i - 1], i - 1, false);
+                emission = model.emissions(pieces[i], emissionScratch);
+                reached = fillColumn(cur, next, transitions, emission, pieces[i], i, true);
+            }
+            if (!reached) {
+                bridge(cur, next, emission, i * numTags);
+            }
+            // the previous column is final now, count its states
+            if (metrics != null && i > 0) {
+                liveStates += live(cur);
+            }
+            // make next scores the current scores, keeping the current ones as the previous
+            double[] swap = prev;
+            prev = cur;
+            cur = next;
+            next = swap;
+        }
+        if (metrics != null && length > 0) {
+            liveStates += live(cur);
+        }
+        // find the best scoring final state
+        int tag = model.startTag();
+        double score = Double.NEGATIVE_INFINITY;
+        for (int curTag = 0; curTag < numTags; curTag++) {
+            if (cur[curTag] > score) {
+                score = cur[curTag];
+                tag = curTag;
+            }
+        }
+        // loop over backtrack, filling the path in from the end
+        for (int k = length - 1; k >= 0; k--) {
+            path[k] = tag;
+            tag = backTrack(k * numTags + tag);
+        }
+        if (metrics != null) {
+            metrics.record(length, unknownWords, liveStates, System.nanoTime() - start);
+        }
+        return path;
+    }
+
+    /**
+     * Fills in column i of the lattice from the scores of column i - 1. With narrow, the column is restricted to
+     * the word's observed tags if the dictionary applies to it and then cut down to the beam; otherwise every
+     * tag is kept. Returns whether any state of the column could be reached.
+     */
+    private boolean fillColumn(double[] cur, double[] next, double[] transitions, double[] emission,
+                               String word, int i, boolean narrow) {
+        int column = i * numTags;
+        // restrict the column to the word's observed tags if the dictionary applies to it
+        int numCandidates = -1;
+        if (narrow && tagDictionaryCount != ALL_TAGS) {
+            numCandidates = model.observedTags(word, tagDictionaryCount, candidateScratch);
+        }
+        boolean reached = numCandidates >= 0
+                && expand(cur, next, transitions, emission, candidateScratch, numCandidates, column);
+        if (!reached) {
+            reached = expand(cur, next, transitions, emission, allTags, numTags, column);
+        }
+        // drop everything outside the beam before it gets expanded
+        if (narrow && beamWidth < numTags) {
+            prune(next);
+        }
+        return reached;
+    }
+
+    /**
+     * Fills in a column no transition reaches, leading every state back to the best state of the current
+     * column and scoring it by its emission alone
+     */
+    private void bridge(double[] cur, double[] next, double[] emission, int column) {
+        int best = model.startTag();
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int curTag = 0; curTag < numTags; curTag++) {
+            if (cur[curTag] > bestScore) {
+                bestScore = cur[curTag];
+                best = curTag;
+            }
+        }
+        // the start state scores 0 in the first column, so there is always a live state to build on
+        for (int nextState = 0; nextState < numTags; nextState++) {
+            next[nextState] = bestScore + emission[nextState];
+            setBackTrack(column + nextState, best);
+        }
+    }
+
+    /**
+     * Number of states in a column that can be reached
+     */
+    private int live(double[] scores) {
+        int live = 0;
+        for (double score : scores) {
+            if (score != Double.NEGATIVE_INFINITY) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Fills in the next column's scores over the given states from the current column's, recording
+     * backpointers at column. Returns whether any of the states could be reached.
+     */
+    private boolean expand(double[] cur, double[] next, double[] transitions, double[] emission,
+                           int[] states, int numStates, int column) {
+        Arrays.fill(next, Double.NEGATIVE_INFINITY);
+        boolean reached = false;
+        // loop over current possible states
+        for (int curState = 0; curState < numTags; curState++) {
+            double curScore = cur[curState];
+            if (curScore == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            int row = curState * numTags;
+            // loop over possible transitions
+            for (int k = 0; k < numStates; k++) {
+                int nextState = states[k];
+                double transition = transitions[row + nextState];
+                if (transition == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                // add the score of the current state, the transition score, and the observation score
+                double nextScore = curScore + transition + emission[nextState];
+                // keep it if it beats every other way of reaching the next state
+                if (nextScore > next[nextState]) {
+                    next[nextState] = nextScore;
+                    setBackTrack(column + nextState, curState);
+                    reached = true;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Records the predecessor of an entry in whichever backpointer array is in use
+     */
+    private void setBackTrack(int index, int state) {
+        if (byteBackTrack != null) {
+            byteBackTrack[index] = (byte) state;
+        }
+        else if (shortBackTrack != null) {
+            shortBackTrack[index] = (short) state;
+        }
+        else {
+            intBackTrack[index] = state;
+        }
+    }
+
+    /**
+     * Reads back a predecessor stored by setBackTrack
+     */
+    private int backTrack(int index) {
+        if (byteBackTrack != null) {
+            return byteBackTrack[index] & 0xFF;
+        }
+        else if (shortBackTrack != null) {
+            return shortBackTrack[index] & 0xFFFF;
+        }
+        return intBackTrack[index];
+    }
+
+    /**
+     * Knocks every state but the beamWidth best in a column down to -Infinity
+     */
+    private void prune(double[] scores) {
+        // gather the live scores
+        int live = 0;
+        for (double score : scores) {
+            if (score != Double.NEGATIVE_INFINITY) {
+                beamScratch[live++] = score;
+            }
+        }
+        if (live <= beamWidth) {
+            return;
+        }
+        // the cutoff is the beamWidth-th best live score
+        Arrays.sort(beamScratch, 0, live);
+        double cutoff = beamScratch[live - beamWidth];
+        // states tied with the cutoff are kept first come, first served until the beam is full
+        int kept = 0;
+        for (int tag = 0; tag < numTags; tag++) {
+            if (scores[tag] > cutoff) {
+                kept++;
+            }
+        }
+        for (int tag = 0; tag < numTags; tag++) {
+            if (scores[tag] < cutoff || (scores[tag] == cutoff && kept++ >= beamWidth)) {
+                scores[tag] = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+}
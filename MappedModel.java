@@ -0,0 +1,442 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Read-only model that is queried in place from a memory-mapped file. Only the tag names and transitions are
+ * copied out when the file is opened; the rest is checked once, in a single pass, and then read in place, with
+ * every process that maps the same file sharing one copy of it in the page cache.
+ *
+ * File layout (big-endian, all offsets in bytes from the start of the file):
+ *   header      magic, version, numTags, numWords, hashSlots, unobserved, then the offset of each section below
+ *   tags        for each tag id, its length as a short followed by its chars
+ *   transitions numTags * numTags doubles, row by row
+ *   hash        hashSlots ints, each 0 for an empty slot or 1 + the id of the word stored there
+ *   words       numWords + 1 ints, where word k's chars run from words[k] to words[k + 1] in the chars section
+ *   rows        numWords + 1 ints, where word k's observed tags run from rows[k] to rows[k + 1] in the entries
+ *   entryTags   one int tag id per observed (word, tag) pair
+ *   entryProbs  one double emission log probability per observed (word, tag) pair
+ *   chars       every word's chars, back to back
+ *   counts      numWords ints, the number of times each word was seen in training (added in version 2)
+ */
+public class MappedModel implements TaggingModel {
+
+    // first four bytes of a mapped model, "HMMM"
+    static final int MAGIC = 0x484D4D4D;
+    // version of the mapped layout, bumped whenever it changes
+    private static final int VERSION = 2;
+    // size of the fixed header: five ints, a double and nine section offsets (eight in version 1)
+    private static final int HEADER_BYTES = 5 * 4 + 8 + 9 * 4;
+
+    // the whole mapped file
+    private final ByteBuffer buffer;
+    // counts read from the header
+    private final int numTags;
+    private final int numWords;
+    private final int hashSlots;
+    // section offsets read from the header
+    private final int hashOffset;
+    private final int wordsOffset;
+    private final int rowsOffset;
+    private final int entryTagsOffset;
+    private final int entryProbsOffset;
+    private final int charsOffset;
+    // -1 for version 1 files, which carry no counts
+    private final int countsOffset;
+    // tag names and the transition matrix; both are tiny, so they are copied out once when the file is opened
+    private final String[] tagNames;
+    private final double[] transitions;
+    // emission row used for unknown words
+    private final double[] unobservedRow;
+    private final double unobserved;
+    // id of the start state #
+    private final int start;
+
+    /**
+     * Checks the header and every section against the size of the file before anything is read from them, and
+     * every offset, tag id and hash slot stored in them, so a truncated or corrupt file is rejected here with an
+     * IOException instead of failing or looping somewhere in decoding
+     */
+    private MappedModel(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        long size = buffer.capacity();
+        if (size < 8 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a mapped model file.");
+        }
+        int version = buffer.getInt(4);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported mapped model version " + version);
+        }
+        // version 1 headers have no counts offset
+        if (size < (version == 1 ? HEADER_BYTES - 4 : HEADER_BYTES)) {
+            throw new IOException("Mapped model file is truncated: " + size + " bytes is too short for its header.");
+        }
+        numTags = buffer.getInt(8);
+        numWords = buffer.getInt(12);
+        hashSlots = buffer.getInt(16);
+        unobserved = buffer.getDouble(20);
+        int tagsOffset = buffer.getInt(28);
+        int transitionsOffset = buffer.getInt(32);
+        hashOffset = buffer.getInt(36);
+        wordsOffset = buffer.getInt(40);
+        rowsOffset = buffer.getInt(44);
+        entryTagsOffset = buffer.getInt(48);
+        entryProbsOffset = buffer.getInt(52);
+        charsOffset = buffer.getInt(56);
+        countsOffset = version == 1 ? -1 : buffer.getInt(60);
+        // the hash table is probed with a mask and must always have an empty slot to end a probe
+        if (numTags < 1 || numWords < 0 || Integer.bitCount(hashSlots) != 1 || hashSlots <= numWords) {
+            throw new IOException("Corrupt mapped model header: " + numTags + " tags, " + numWords + " words, " + hashSlots + " hash slots.");
+        }
+        checkSection("transitions", transitionsOffset, (long) numTags * numTags * 8, size);
+        checkSection("hash", hashOffset, (long) hashSlots * 4, size);
+        checkSection("words", wordsOffset, (numWords + 1L) * 4, size);
+        checkSection("rows", rowsOffset, (numWords + 1L) * 4, size);
+        // the last word and row offsets are the sizes of the sections they point into
+        int numChars = buffer.getInt(wordsOffset + numWords * 4);
+        int numEntries = buffer.getInt(rowsOffset + numWords * 4);
+        if (numChars < 0 || numEntries < 0) {
+            throw new IOException("Corrupt mapped model: " + numChars + " chars, " + numEntries + " entries.");
+        }
+        checkSection("entryTags", entryTagsOffset, numEntries * 4L, size);
+        checkSection("entryProbs", entryProbsOffset, numEntries * 8L, size);
+        checkSection("chars", charsOffset, numChars * 2L, size);
+        if (countsOffset >= 0) {
+            checkSection("counts", countsOffset, numWords * 4L, size);
+        }
+        // read the tag names
+        tagNames = new String[numTags];
+        int position = tagsOffset;
+        int startTag = -1;
+        for (int tag = 0; tag < numTags; tag++) {
+            checkSection("tags", position, 2, size);
+            char[] name = new char[buffer.getShort(position)];
+            position += 2;
+            checkSection("tags", position, name.length * 2L, size);
+            for (int c = 0; c < name.length; c++) {
+                name[c] = buffer.getChar(position);
+                position += 2;
+            }
+            tagNames[tag] = new String(name);
+            if (tagNames[tag].equals("#")) {
+                startTag = tag;
+            }
+        }
+        if (startTag < 0) {
+            throw new IOException("Corrupt mapped model: no start tag #.");
+        }
+        start = startTag;
+        checkContents(numEntries);
+        // read the transition matrix
+        transitions = new double[numTags * numTags];
+        for (int k = 0; k < transitions.length; k++) {
+            transitions[k] = buffer.getDouble(transitionsOffset + k * 8);
+        }
+        unobservedRow = new double[numTags];
+        Arrays.fill(unobservedRow, unobserved);
+    }
+
+    /**
+     * Throws unless every word's chars and observed entries lie within their sections, every entry's tag id is
+     * a real tag, and the hash table only points at real words and still has an empty slot to end a probe
+     */
+    private void checkContents(int numEntries) throws IOException {
+        // word and row offsets must start at 0 and never go backwards, which keeps them within the last one
+        int lastChar = 0;
+        int lastEntry = 0;
+        for (int word = 0; word <= numWords; word++) {
+            int chars = buffer.getInt(wordsOffset + word * 4);
+            int entries = buffer.getInt(rowsOffset + word * 4);
+            if ((word == 0 ? chars != 0 || entries != 0 : chars < lastChar || entries < lastEntry)
+                    || entries - lastEntry > numTags) {
+                throw new IOException("Corrupt mapped model: word " + word + " has chars at " + chars
+                        + " and entries at " + entries + ".");
+            }
+            lastChar = chars;
+            lastEntry = entries;
+        }
+        for (int entry = 0; entry < numEntries; entry++) {
+            int tag = buffer.getInt(entryTagsOffset + entry * 4);
+            if (tag < 0 || tag >= numTags) {
+                throw new IOException("Corrupt mapped model: entry " + entry + " has tag id " + tag + " of " + numTags + ".");
+            }
+        }
+        int usedSlots = 0;
+        for (int slot = 0; slot < hashSlots; slot++) {
+            int entry = buffer.getInt(hashOffset + slot * 4);
+            if (entry < 0 || entry > numWords) {
+                throw new IOException("Corrupt mapped model: hash slot " + slot + " holds " + entry + ".");
+            }
+            if (entry != 0) {
+                usedSlots++;
+            }
+        }
+        // hashSlots is bigger than numWords, so this leaves an empty slot
+        if (usedSlots > numWords) {
+            throw new IOException("Corrupt mapped model: " + usedSlots + " hash slots in use for " + numWords + " words.");
+        }
+    }
+
+    /**
+     * Throws if a section doesn't lie entirely within the file
+     */
+    private static void checkSection(String section, long offset, long length, long size) throws IOException {
+        if (offset < HEADER_BYTES - 4 || length < 0 || offset + length > size) {
+            throw new IOException("Mapped model file is truncated or corrupt: " + section + " section of " + length
+                    + " bytes at offset " + offset + " doesn't fit in " + size + " bytes.");
+        }
+    }
+
+    /**
+     * Maps a file written by write() into memory. The mapping stays valid after the channel is closed.
+     */
+    public static MappedModel open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedModel(buffer);
+        }
+    }
+
+    /**
+     * Lays a compiled model out in the mapped format described above
+     */
+    public static void write(CompiledModel model, Path file) throws IOException {
+        int numTags = model.numTags();
+        double unobserved = model.unobserved();
+        // give every word an id and look up its emission row
+        ArrayList<String> words = new ArrayList<>(model.words());
+        int numWords = words.size();
+        ArrayList<double[]> rows = new ArrayList<>(numWords);
+        for (String word : words) {
+            rows.add(model.emissions(word, new double[numTags]).clone());
+        }
+        // open addressing table at most half full
+        int hashSlots = Integer.highestOneBit(Math.max(2, numWords) * 2) * 2;
+        int[] hash = new int[hashSlots];
+        for (int word = 0; word < numWords; word++) {
+            int slot = slot(words.get(word).hashCode(), hashSlots);
+            while (hash[slot] != 0) {
+                slot = (slot + 1) & (hashSlots - 1);
+            }
+            hash[slot] = word + 1;
+        }
+        // count the observed entries so every section's offset is known up front
+        int numEntries = 0;
+        for (double[] row : rows) {
+            for (double emission : row) {
+                if (emission != unobserved) {
+                    numEntries++;
+                }
+            }
+        }
+        int tagBytes = 0;
+        for (int tag = 0; tag < numTags; tag++) {
+            tagBytes += 2 + 2 * model.tagName(tag).length();
+        }
+        int tagsOffset = HEADER_BYTES;
+        int transitionsOffset = tagsOffset + tagBytes;
+        int hashOffset = transitionsOffset + numTags * numTags * 8;
+        int wordsOffset = hashOffset + hashSlots * 4;
+        int rowsOffset = wordsOffset + (numWords + 1) * 4;
+        int entryTagsOffset = rowsOffset + (numWords + 1) * 4;
+        int entryProbsOffset = entryTagsOffset + numEntries * 4;
+        int charsOffset = entryProbsOffset + numEntries * 8;
+        int countsOffset = charsOffset;
+        for (String word : words) {
+            countsOffset += word.length() * 2;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            // header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numTags);
+            out.writeInt(numWords);
+            out.writeInt(hashSlots);
+            out.writeDouble(unobserved);
+            out.writeInt(tagsOffset);
+            out.writeInt(transitionsOffset);
+            out.writeInt(hashOffset);
+            out.writeInt(wordsOffset);
+            out.writeInt(rowsOffset);
+            out.writeInt(entryTagsOffset);
+            out.writeInt(entryProbsOffset);
+            out.writeInt(charsOffset);
+            out.writeInt(countsOffset);
+            // tags
+            for (int tag = 0; tag < numTags; tag++) {
+                out.writeShort(model.tagName(tag).length());
+                out.writeChars(model.tagName(tag));
+            }
+            // transitions
+            for (double transition : model.transitions()) {
+                out.writeDouble(transition);
+            }
+            // hash
+            for (int slot : hash) {
+                out.writeInt(slot);
+            }
+            // words
+            int chars = 0;
+            for (String word : words) {
+                out.writeInt(chars);
+                chars += word.length();
+            }
+            out.writeInt(chars);
+            // rows
+            int entries = 0;
+            for (double[] row : rows) {
+                out.writeInt(entries);
+                for (double emission : row) {
+                    if (emission != unobserved) {
+                        entries++;
+                    }
+                }
+            }
+            out.writeInt(entries);
+            // entry tags, then entry probabilities
+            for (double[] row : rows) {
+                for (int tag = 0; tag < numTags; tag++) {
+                    if (row[tag] != unobserved) {
+                        out.writeInt(tag);
+                    }
+                }
+            }
+            for (double[] row : rows) {
+                for (double emission : row) {
+                    if (emission != unobserved) {
+                        out.writeDouble(emission);
+                    }
+                }
+            }
+            // chars
+            for (String word : words) {
+                out.writeChars(word);
+            }
+            // counts
+            for (String word : words) {
+                out.writeInt(model.count(word));
+            }
+        }
+    }
+
+    /**
+     * First hash slot to probe for a word's hash code
+     */
+    private static int slot(int hashCode, int hashSlots) {
+        // spread the high bits down since the table size is a power of two
+        return (hashCode ^ (hashCode >>> 16)) & (hashSlots - 1);
+    }
+
+    /**
+     * Id of a word in the mapped vocabulary, or -1 if it isn't there
+     */
+    private int wordId(String word) {
+        int slot = slot(word.hashCode(), hashSlots);
+        while (true) {
+            int entry = buffer.getInt(hashOffset + slot * 4);
+            // an empty slot ends the probe sequence
+            if (entry == 0) {
+                return -1;
+            }
+            if (wordEquals(entry - 1, word)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & (hashSlots - 1);
+        }
+    }
+
+    /**
+     * Compares a stored word to a string without copying it out of the file
+     */
+    private boolean wordEquals(int id, String word) {
+        int from = buffer.getInt(wordsOffset + id * 4);
+        int to = buffer.getInt(wordsOffset + (id + 1) * 4);
+        if (to - from != word.length()) {
+            return false;
+        }
+        for (int c = 0; c < word.length(); c++) {
+            if (buffer.getChar(charsOffset + (from + c) * 2) != word.charAt(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int numTags() {
+        return numTags;
+    }
+
+    @Override
+    public int startTag() {
+        return start;
+    }
+
+    @Override
+    public String tagName(int tag) {
+        return tagNames[tag];
+    }
+
+    @Override
+    public int tagId(String tag) {
+        for (int id = 0; id < numTags; id++) {
+            if (tagNames[id].equals(tag)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public double[] transitions() {
+        return transitions;
+    }
+
+    @Override
+    public double[] emissions(String word, double[] scratch) {
+        int id = wordId(word);
+        if (id < 0) {
+            return unobservedRow;
+        }
+        // spread the word's observed entries over a row of unseen word penalties
+        Arrays.fill(scratch, unobserved);
+        int from = buffer.getInt(rowsOffset + id * 4);
+        int to = buffer.getInt(rowsOffset + (id + 1) * 4);
+        for (int entry = from; entry < to; entry++) {
+            scratch[buffer.getInt(entryTagsOffset + entry * 4)] = buffer.getDouble(entryProbsOffset + entry * 8);
+        }
+        return scratch;
+    }
+
+    @Override
+    public boolean isUnobserved(double[] emission) {
+        // unknown words always get the shared row
+        return emission == unobservedRow;
+    }
+
+    @Override
+    public int observedTags(String word, int minCount, int[] candidates) {
+        int id = wordId(word);
+        if (id < 0) {
+            return -1;
+        }
+        int count = countsOffset < 0 ? 0 : buffer.getInt(countsOffset + id * 4);
+        if (count < minCount) {
+            return -1;
+        }
+        int from = buffer.getInt(rowsOffset + id * 4);
+        int to = buffer.getInt(rowsOffset + (id + 1) * 4);
+        for (int entry = from; entry < to; entry++) {
+            candidates[entry - from] = buffer.getInt(entryTagsOffset + entry * 4);
+        }
+        return to - from;
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the model a tagger serves and swaps it for a new one atomically. Models never change once built, so
+ * a swap never disturbs decoding in flight: decoders that already hold the old model finish with it, and
+ * everything that asks for the model afterwards gets the new one. A tagger created with Viterbi.serve()
+ * picks up a swapped model the next time it tags anything.
+ *
+ * The held model can be replaced explicitly with set() or reload(), or by watch(), which reloads the model
+ * file whenever it changes on disk. To replace a watched file, write the new model next to it and rename it
+ * over the old one, so the file is never seen half written (and a mapped file is never changed under a
+ * mapping still in use).
+ */
+public class ModelHolder implements AutoCloseable {
+
+    // file the model is loaded from, null for a holder that is only ever set() explicitly
+    private final Path file;
+    // the model being served
+    private final AtomicReference<TaggingModel> current;
+    // watches the model file's directory, null until watch() is called
+    private WatchService watcher;
+
+    /**
+     * Holds a model that is only ever replaced explicitly with set()
+     */
+    public ModelHolder(TaggingModel model) {
+        this.file = null;
+        current = new AtomicReference<>(model);
+    }
+
+    /**
+     * Holds the model in a file written by Viterbi.save() or Viterbi.saveMapped(), loading it right away
+     */
+    public ModelHolder(Path file) throws IOException {
+        this.file = file;
+        current = new AtomicReference<>(read(file));
+    }
+
+    /**
+     * The model currently being served
+     */
+    public TaggingModel get() {
+        return current.get();
+    }
+
+    /**
+     * Starts serving another model, such as a retrained one, and returns the one it replaces
+     */
+    public TaggingModel set(TaggingModel model) {
+        return current.getAndSet(model);
+    }
+
+    /**
+     * Loads the model file again and starts serving it. If the file can't be read the current model
+     * stays in place and the error is thrown.
+     */
+    public TaggingModel reload() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("This holder has no model file to reload.");
+        }
+        TaggingModel model = read(file);
+        current.set(model);
+        return model;
+    }
+
+    /**
+     * Reloads the model on a background thread every time its file is created or modified, until close()
+     */
+    public synchronized void watch() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("This holder has no model file to watch.");
+        }
+        if (watcher != null) {
+            return;
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        watcher = FileSystems.getDefault().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        WatchService service = watcher;
+        Thread thread = new Thread(() -> watchLoop(service), "model-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Body of the watching thread: reloads on every event for the model file until the service is closed
+     */
+    private void watchLoop(WatchService service) {
+        Path name = file.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (name.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    try {
+                        reload();
+                    }
+                    // keep serving the old model; a file still being written triggers another event when done
+                    catch (IOException e) {
+                        System.err.println("Cannot reload model.\n" + e.getMessage());
+                    }
+                    // a damaged file can fail in ways the loaders don't check for; that mustn't end the watching
+                    catch (RuntimeException e) {
+                        System.err.println("Cannot reload model.\n" + e);
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException e) {
+            // close() was called
+        }
+    }
+
+    /**
+     * Stops watching the model file; the current model stays in place
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Loads a model file in whichever of the two formats it was saved in
+     */
+    public static TaggingModel read(Path file) throws IOException {
+        int magic;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            magic = in.readInt();
+        }
+        return magic == MappedModel.MAGIC ? MappedModel.open(file) : CompiledModel.load(file);
+    }
+}
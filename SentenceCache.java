@@ -0,0 +1,161 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded sentences, keyed by their token sequence itself rather than the joined text (pre-split
+ * tokens may contain spaces), so text that keeps repeating (headlines,
+ * boilerplate, templated messages) is only run through Viterbi once. When full, the least recently used
+ * sentence is evicted.
+ *
+ * The cache is split into segments, each an LRU map behind its own lock, so concurrent taggers rarely wait on
+ * each other. Every entry remembers the model, beam width and tag dictionary it was decoded with and only
+ * counts as a hit for a decoder with those same three, so entries left over from before an update, a reload or
+ * a change of settings are never returned; they just age out.
+ */
+public class SentenceCache {
+
+    // number of independently locked segments, a power of two
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Tag ids of a decoded sentence and the model and decoder settings they came from
+     */
+    private static final class Entry {
+        final TaggingModel model;
+        final int beamWidth;
+        final int tagDictionaryCount;
+        final int[] tags;
+
+        Entry(Decoder decoder, int[] tags) {
+            this.model = decoder.model();
+            this.beamWidth = decoder.beamWidth();
+            this.tagDictionaryCount = decoder.tagDictionaryCount();
+            this.tags = tags;
+        }
+
+        /**
+         * Whether the decoder would have decoded these tags itself
+         */
+        boolean matches(Decoder decoder) {
+            return model == decoder.model()
+                    && beamWidth == decoder.beamWidth()
+                    && tagDictionaryCount == decoder.tagDictionaryCount();
+        }
+    }
+
+    /**
+     * One segment, an access ordered map that evicts its least recently used entry once it holds more than
+     * capacity sentences
+     */
+    private static final class Segment extends LinkedHashMap<List<String>,Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            // access ordered, so the eldest entry is the least recently used one
+            super(capacity * 2, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>,Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    // segments the sentences are spread over by hash code
+    private final Segment[] segments;
+    // lookups that were and weren't answered from the cache
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache holding about capacity sentences (rounded up to a multiple of the segment count)
+     */
+    public SentenceCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1, got " + capacity);
+        }
+        int segmentCapacity = (capacity + SEGMENTS - 1) / SEGMENTS;
+        segments = new Segment[SEGMENTS];
+        for (int k = 0; k < SEGMENTS; k++) {
+            segments[k] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Tag ids of a split sentence, from the cache if it was decoded before with the decoder's model and settings,
+     * and from the decoder otherwise. Only the first pieces.length entries are meaningful and callers must not
+     * modify the result.
+     */
+    public int[] decode(Decoder decoder, String[] pieces) {
+        List<String> key = List.of(pieces);
+        Segment segment = segment(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        // an entry of any other length can't be this sentence's, whatever its key
+        if (entry != null && entry.tags.length == pieces.length && entry.matches(decoder)) {
+            hits.increment();
+            return entry.tags;
+        }
+        misses.increment();
+        // decode outside the lock, keeping a copy since the decoder reuses its path array
+        int[] path = decoder.decode(pieces);
+        int[] tags = new int[pieces.length];
+        System.arraycopy(path, 0, tags, 0, pieces.length);
+        synchronized (segment) {
+            segment.put(key, new Entry(decoder, tags));
+        }
+        return tags;
+    }
+
+    /**
+     * Segment a sentence belongs to
+     */
+    private Segment segment(List<String> key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Number of lookups answered from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that had to be decoded
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of sentences currently cached, including ones decoded against an older model or with older settings
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Drops every cached sentence; the hit and miss counts are kept
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+}
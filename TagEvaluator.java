@@ -0,0 +1,182 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Measures tagging accuracy by comparing predicted tags to gold tags one sentence at a time. Nothing is kept
+ * but the running counts, so a held-out set of any size is evaluated in time linear in its length and in
+ * constant memory, and neither sequence is ever modified.
+ */
+public class TagEvaluator {
+
+    // tags compared so far and how many of them matched
+    private long total;
+    private long correct;
+    // sentences whose predicted and gold tags had different lengths
+    private long misaligned;
+    // sentences read by evaluate()
+    private long sentences;
+
+    /**
+     * Compares one sentence's predicted tags to its gold tags, position by position. If the lengths differ,
+     * every gold tag without a prediction counts as wrong.
+     */
+    public void add(String[] predicted, String[] gold) {
+        if (predicted.length != gold.length) {
+            misaligned++;
+        }
+        int compared = Math.min(predicted.length, gold.length);
+        for (int k = 0; k < compared; k++) {
+            if (predicted[k].equals(gold[k])) {
+                correct++;
+            }
+        }
+        total += gold.length;
+    }
+
+    /**
+     * Compares two flat tag sequences, skipping the # sentence markers in the gold tags. Predicted tags are taken
+     * as they are, since a decoder can legitimately predict # and skipping it would shift every later comparison.
+     * Just like for a sentence, sequences of different lengths count as misaligned and every gold tag without
+     * a prediction counts as wrong.
+     */
+    public void add(Iterator<String> predicted, Iterator<String> gold) {
+        while (true) {
+            String goldTag = nextTag(gold);
+            if (goldTag == null) {
+                // predictions left over once the gold tags ran out
+                if (predicted.hasNext()) {
+                    misaligned++;
+                }
+                break;
+            }
+            if (!predicted.hasNext()) {
+                // predictions ran out; the rest of the gold tags count as wrong
+                misaligned++;
+                total++;
+                while (nextTag(gold) != null) {
+                    total++;
+                }
+                break;
+            }
+            total++;
+            if (predicted.next().equals(goldTag)) {
+                correct++;
+            }
+        }
+    }
+
+    /**
+     * Next gold tag that isn't a # marker, or null at its end
+     */
+    private static String nextTag(Iterator<String> tags) {
+        while (tags.hasNext()) {
+            String tag = tags.next();
+            if (!tag.equals("#")) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tags a sentences file with the tagger and compares it to its tags file, reading both in lockstep one
+     * line at a time
+     */
+    public static TagEvaluator evaluate(Viterbi tagger, String sentencesFileName, String tagsFileName) throws IOException {
+        TagEvaluator evaluator = new TagEvaluator();
+        // try creating a reader for each file
+        BufferedReader sentences;
+        BufferedReader tags;
+        try {
+            sentences = CorpusFiles.open(sentencesFileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            return evaluator;
+        }
+        try {
+            tags = CorpusFiles.open(tagsFileName);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            sentences.close();
+            return evaluator;
+        }
+        // both readers are closed however decoding ends
+        try (sentences; tags) {
+            Decoder decoder = tagger.createDecoder();
+            while (true) {
+                String sentence = sentences.readLine();
+                String tagLine = tags.readLine();
+                if (sentence == null || tagLine == null) {
+                    if (sentence != null || tagLine != null) {
+                        System.err.println("Sentences and tags files have different numbers of lines, stopped after line " + evaluator.sentences() + ".");
+                    }
+                    break;
+                }
+                // decode the sentence just like fileTagger() does
+                String[] pieces = sentence.toLowerCase().split(" ");
+                int[] path = tagger.decode(decoder, pieces);
+                // reuse the word array to hold the predicted tags
+                for (int k = 0; k < pieces.length; k++) {
+                    pieces[k] = decoder.model().tagName(path[k]);
+                }
+                evaluator.add(pieces, tagLine.split(" "));
+                evaluator.sentences++;
+            }
+        }
+        // if error while reading, catch it
+        catch (IOException e) {
+            System.err.println("IO error while reading.\n" + e.getMessage());
+        }
+        return evaluator;
+    }
+
+    /**
+     * Number of sentences evaluate() compared
+     */
+    public long sentences() {
+        return sentences;
+    }
+
+    /**
+     * Number of gold tags compared
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Number of gold tags that were predicted correctly
+     */
+    public long correct() {
+        return correct;
+    }
+
+    /**
+     * Number of sentences, or flat sequences, whose predicted and gold tags didn't line up
+     */
+    public long misaligned() {
+        return misaligned;
+    }
+
+    /**
+     * Fraction of gold tags predicted correctly, 0 if nothing was compared
+     */
+    public double accuracy() {
+        return total == 0 ? 0.0 : (double) correct / total;
+    }
+
+    /**
+     * Prints the results the way testAccuracy() always has
+     */
+    public void print() {
+        System.out.println("The tagger got a total of " + (double) correct + " tags correct out of " + (double) total + " total, with an accuracy of " + accuracy() * 100 + "%");
+        if (misaligned > 0) {
+            System.err.println(misaligned + " sentences had a different number of predicted and gold tags.");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Benchmarks each phase of training, decoding and evaluation on synthetic corpora and reports time per run,
+ * tokens per second and bytes allocated per run.
+ *
+ * Every corpus parameter takes a comma separated list and every combination is run, for example
+ *   java TaggerBenchmark sentences=1000,10000 length=10,40 tags=12,45 oov=0,0.1
+ *
+ * The decoding modes take lists too, and each corpus is tagged once per value: beam=4,8 for beam widths,
+ * dict=1,5 for tag dictionary counts (exact and all tags are always measured) and threads=2,4 for training and
+ * tagging on that many threads.
+ *
+ * Every result is folded into a checksum printed at the end, so the JIT can't discard the work behind it.
+ */
+public class TaggerBenchmark {
+
+    // untimed runs before measuring, so the JIT has compiled the hot loops
+    private static final int WARMUP_RUNS = 5;
+    // timed runs per phase
+    private static final int MEASURED_RUNS = 10;
+
+    // hash of every result produced so far
+    private static long checksum;
+
+    // thread bean that can report allocated bytes per thread
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One phase being measured; returns a value so the JIT can't discard the work
+     */
+    private interface Phase {
+        Object run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // defaults, overridden by name=value arguments
+        String[] sentences = {"5000"};
+        String[] lengths = {"20"};
+        String[] tagCounts = {"40"};
+        String[] oovRates = {"0.05"};
+        String[] beams = {};
+        String[] dictionaries = {};
+        String[] threadCounts = {};
+        for (String arg : args) {
+            String[] pieces = arg.split("=", 2);
+            String[] values = pieces[1].split(",");
+            switch (pieces[0]) {
+                case "sentences": sentences = values; break;
+                case "length": lengths = values; break;
+                case "tags": tagCounts = values; break;
+                case "oov": oovRates = values; break;
+                case "beam": beams = values; break;
+                case "dict": dictionaries = values; break;
+                case "threads": threadCounts = values; break;
+                default: throw new IllegalArgumentException("Unknown parameter " + pieces[0]);
+            }
+        }
+        System.out.printf("%-26s %9s %6s %5s %5s %12s %14s %14s%n",
+                "phase", "sentences", "length", "tags", "oov", "ms/run", "tokens/s", "bytes/run");
+        for (String numSentences : sentences) {
+            for (String length : lengths) {
+                for (String numTags : tagCounts) {
+                    for (String oov : oovRates) {
+                        run(Integer.parseInt(numSentences), Integer.parseInt(length), Integer.parseInt(numTags), Double.parseDouble(oov),
+                                beams, dictionaries, threadCounts);
+                    }
+                }
+            }
+        }
+        System.out.printf("checksum %016x%n", checksum);
+    }
+
+    /**
+     * Generates a corpus for one parameter combination and measures every phase on it
+     */
+    private static void run(int numSentences, int length, int numTags, double oov,
+                            String[] beams, String[] dictionaries, String[] threadCounts) throws IOException {
+        Path dir = Files.createTempDirectory("hmm-bench");
+        Path trainSentences = dir.resolve("train-sentences.txt");
+        Path trainTags = dir.resolve("train-tags.txt");
+        Path testSentences = dir.resolve("test-sentences.txt");
+        Path testTags = dir.resolve("test-tags.txt");
+        Random random = new Random(42);
+        // each tag prefers a handful of successors, like real tagsets do
+        int[][] successors = new int[numTags][4];
+        for (int[] row : successors) {
+            for (int k = 0; k < row.length; k++) {
+                row[k] = random.nextInt(numTags);
+            }
+        }
+        generate(random, successors, numSentences, length, 0.0, trainSentences, trainTags);
+        generate(random, successors, Math.max(1, numSentences / 10), length, oov, testSentences, testTags);
+        // tokens per run, counting the # markers the same way training does
+        long trainTokens = (long) numSentences * (length + 1);
+        long testTokens = (long) Math.max(1, numSentences / 10) * length;
+        String label = String.format("%9d %6d %5d %5.2f", numSentences, length, numTags, oov);
+
+        ArrayList<String> words = Viterbi.getWordsOrTags(trainSentences.toString(), false);
+        ArrayList<String> tags = Viterbi.getWordsOrTags(trainTags.toString(), true);
+        measure("getWordsOrTags", label, trainTokens, () -> Viterbi.getWordsOrTags(trainSentences.toString(), false));
+        measure("mapWordsToPOS", label, trainTokens, () -> Viterbi.mapWordsToPOS(words, tags));
+        measure("normalizeWordToPOS", label, trainTokens, () -> Viterbi.normalizeWordToPOS(Viterbi.mapWordsToPOS(words, tags), tags));
+        measure("mapPOStoTransition", label, trainTokens, () -> Viterbi.mapPOStoTransition(tags));
+        measure("train (constructor)", label, trainTokens, () -> new Viterbi(trainSentences.toString(), trainTags.toString()));
+        for (String threads : threadCounts) {
+            int count = Integer.parseInt(threads);
+            measure("train threads=" + count, label, trainTokens, () -> new Viterbi(trainSentences.toString(), trainTags.toString(), count));
+        }
+
+        Viterbi viterbi = new Viterbi(trainSentences.toString(), trainTags.toString());
+        List<String> testLines = Files.readAllLines(testSentences);
+        measure("fileTagger", label, testTokens, () -> viterbi.fileTagger(testSentences.toString()));
+        measure("tagBatch", label, testTokens, () -> viterbi.tagBatch(testLines));
+        for (String threads : threadCounts) {
+            int count = Integer.parseInt(threads);
+            measure("fileTagger threads=" + count, label, testTokens, () -> viterbi.fileTagger(testSentences.toString(), count));
+        }
+        for (String beam : beams) {
+            viterbi.setBeamWidth(Integer.parseInt(beam));
+            measure("fileTagger beam=" + beam, label, testTokens, () -> viterbi.fileTagger(testSentences.toString()));
+        }
+        viterbi.setBeamWidth(Decoder.EXACT);
+        for (String dictionary : dictionaries) {
+            viterbi.setTagDictionary(Integer.parseInt(dictionary));
+            measure("fileTagger dict=" + dictionary, label, testTokens, () -> viterbi.fileTagger(testSentences.toString()));
+        }
+        viterbi.setTagDictionary(Decoder.ALL_TAGS);
+        ArrayList<String> foundTags = viterbi.fileTagger(testSentences.toString());
+        ArrayList<String> realTags = Viterbi.getWordsOrTags(testTags.toString(), true);
+        measure("testAccuracy", label, testTokens, () -> quietly(() -> viterbi.testAccuracy(foundTags, realTags)));
+        measure("evaluate", label, testTokens, () -> quietly(() -> viterbi.evaluate(testSentences.toString(), testTags.toString())));
+
+        for (Path file : new Path[] {trainSentences, trainTags, testSentences, testTags}) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Warms a phase up, then times it and reports the averages over the measured runs. Every result is
+     * hashed into the checksum, which costs a little time but makes sure the result was really computed.
+     */
+    private static void measure(String name, String label, long tokens, Phase phase) throws IOException {
+        for (int k = 0; k < WARMUP_RUNS; k++) {
+            consume(phase.run());
+        }
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int k = 0; k < MEASURED_RUNS; k++) {
+            consume(phase.run());
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        double msPerRun = elapsed / 1e6 / MEASURED_RUNS;
+        double tokensPerSecond = tokens * MEASURED_RUNS / (elapsed / 1e9);
+        System.out.printf("%-26s %s %12.3f %14.0f %14d%n", name, label, msPerRun, tokensPerSecond, allocated / MEASURED_RUNS);
+    }
+
+    /**
+     * Folds a result into the checksum
+     */
+    private static void consume(Object result) {
+        checksum = checksum * 31 + Objects.hashCode(result);
+    }
+
+    /**
+     * Runs a phase with standard output discarded, for methods that print their results
+     */
+    private static Object quietly(Phase phase) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return phase.run();
+        }
+        finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Writes a sentences file and a matching tags file drawn from a random HMM whose tags move to one of
+     * their successors most of the time. Each tag emits from its own
+     * pool of words, and with probability oov a word is replaced by one that never appears in training.
+     */
+    private static void generate(Random random, int[][] successors, int numSentences, int length, double oov, Path sentencesFile, Path tagsFile) throws IOException {
+        int numTags = successors.length;
+        try (BufferedWriter sentences = Files.newBufferedWriter(sentencesFile);
+             BufferedWriter tags = Files.newBufferedWriter(tagsFile)) {
+            for (int s = 0; s < numSentences; s++) {
+                int tag = random.nextInt(numTags);
+                for (int k = 0; k < length; k++) {
+                    if (k > 0) {
+                        sentences.write(' ');
+                        tags.write(' ');
+                    }
+                    // sentences always end with a period, as in the Brown corpus
+                    if (k == length - 1) {
+                        sentences.write('.');
+                        tags.write('.');
+                        break;
+                    }
+                    if (random.nextDouble() < oov) {
+                        sentences.write("unseen" + random.nextInt(1_000_000));
+                    }
+                    else {
+                        // a few words are shared between tags so decoding is ambiguous
+                        int owner = random.nextInt(10) == 0 ? random.nextInt(numTags) : tag;
+                        sentences.write("w" + owner + "_" + random.nextInt(200));
+                    }
+                    tags.write("T" + tag);
+                    tag = random.nextInt(5) == 0 ? random.nextInt(numTags) : successors[tag][random.nextInt(4)];
+                }
+                sentences.newLine();
+                tags.newLine();
+            }
+        }
+    }
+}
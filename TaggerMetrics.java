@@ -0,0 +1,231 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Running counts of what the decoders of one tagger have done: sentences and tokens decoded, tokens never
+ * seen in training (scored with the unseen word penalty for every tag), live lattice states per column and a
+ * histogram of per-sentence decode latency. Counters are striped LongAdders, so decoders on many threads can
+ * record at once without contending. Readings can be taken from JMX after register(), or as text with snapshot().
+ *
+ * Latency is bucketed by powers of two: bucket k counts sentences that took from 2^(k-1) up to 2^k microseconds,
+ * so percentiles are reported as the upper bound of the bucket they fall in.
+ *
+ * Sentences and tokens per second are measured over windows of at least RATE_WINDOW_SECONDS, each ending at
+ * the reading that closes it, and report the last closed window; until one closes they cover the time since
+ * the first sentence was recorded, so the time spent training never counts against them. Only sentences that
+ * reach a decoder are counted, not ones answered from a sentence cache.
+ */
+public class TaggerMetrics implements TaggerMetricsMBean {
+
+    // number of latency buckets, enough for decodes of over half an hour
+    private static final int LATENCY_BUCKETS = 32;
+    // shortest span the per second rates are measured over
+    private static final int RATE_WINDOW_SECONDS = 10;
+
+    /**
+     * Where a rate window started, and the rates measured over the window before it (NaN before the first
+     * window has closed)
+     */
+    private static final class RateWindow {
+        final long start;
+        final long sentences;
+        final long tokens;
+        final double sentencesPerSecond;
+        final double tokensPerSecond;
+
+        RateWindow(long start, long sentences, long tokens, double sentencesPerSecond, double tokensPerSecond) {
+            this.start = start;
+            this.sentences = sentences;
+            this.tokens = tokens;
+            this.sentencesPerSecond = sentencesPerSecond;
+            this.tokensPerSecond = tokensPerSecond;
+        }
+    }
+
+    private final LongAdder sentences = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder unknownTokens = new LongAdder();
+    // live states summed over every lattice column
+    private final LongAdder liveStates = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder[] latency = new LongAdder[LATENCY_BUCKETS];
+    // window the per second rates are currently being measured over, null until the first sentence
+    private final AtomicReference<RateWindow> rateWindow = new AtomicReference<>();
+
+    public TaggerMetrics() {
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            latency[k] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one decoded sentence
+     * @param sentenceLiveStates: live states summed over the sentence's lattice columns
+     */
+    public void record(int sentenceTokens, int sentenceUnknownTokens, long sentenceLiveStates, long nanos) {
+        // start the clock at the first sentence, not when the tagger was created and trained
+        if (rateWindow.get() == null) {
+            rateWindow.compareAndSet(null, new RateWindow(System.nanoTime() - nanos, 0, 0, Double.NaN, Double.NaN));
+        }
+        sentences.increment();
+        tokens.add(sentenceTokens);
+        unknownTokens.add(sentenceUnknownTokens);
+        liveStates.add(sentenceLiveStates);
+        decodeNanos.add(nanos);
+        long micros = nanos / 1000;
+        latency[Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+    }
+
+    /**
+     * Makes the metrics readable over JMX under hmm:type=TaggerMetrics,name=<name>
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("hmm:type=TaggerMetrics,name=" + ObjectName.quote(name)));
+    }
+
+    @Override
+    public long getSentences() {
+        return sentences.sum();
+    }
+
+    @Override
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    @Override
+    public long getUnknownTokens() {
+        return unknownTokens.sum();
+    }
+
+    @Override
+    public double getUnknownTokenRate() {
+        long total = tokens.sum();
+        return total == 0 ? 0.0 : (double) unknownTokens.sum() / total;
+    }
+
+    @Override
+    public double getSentencesPerSecond() {
+        RateWindow window = rates();
+        return window == null ? 0.0 : window.sentencesPerSecond;
+    }
+
+    @Override
+    public double getTokensPerSecond() {
+        RateWindow window = rates();
+        return window == null ? 0.0 : window.tokensPerSecond;
+    }
+
+    @Override
+    public double getAverageLiveStates() {
+        long total = tokens.sum();
+        return total == 0 ? 0.0 : (double) liveStates.sum() / total;
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long total = sentences.sum();
+        return total == 0 ? 0.0 : decodeNanos.sum() / 1000.0 / total;
+    }
+
+    @Override
+    public long getMedianLatencyMicros() {
+        return latencyPercentile(0.5);
+    }
+
+    @Override
+    public long getP99LatencyMicros() {
+        return latencyPercentile(0.99);
+    }
+
+    /**
+     * Upper bound in microseconds of the latency bucket holding the given fraction of sentences, 0 if none
+     */
+    public long latencyPercentile(double fraction) {
+        long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            counts[k] = latency[k].sum();
+            total += counts[k];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        // walk the buckets until enough sentences are covered
+        long needed = (long) Math.ceil(fraction * total);
+        long covered = 0;
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            covered += counts[k];
+            if (covered >= needed) {
+                return 1L << k;
+            }
+        }
+        return 1L << (LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Every reading on one line each
+     */
+    @Override
+    public String snapshot() {
+        return String.format("sentences %d%n" +
+                        "tokens %d%n" +
+                        "unknown tokens %d (%.2f%%)%n" +
+                        "sentences/s %.1f%n" +
+                        "tokens/s %.1f%n" +
+                        "average live states %.2f%n" +
+                        "latency mean %.1f us, median <= %d us, p99 <= %d us%n",
+                getSentences(), getTokens(), getUnknownTokens(), getUnknownTokenRate() * 100,
+                getSentencesPerSecond(), getTokensPerSecond(), getAverageLiveStates(),
+                getMeanLatencyMicros(), getMedianLatencyMicros(), getP99LatencyMicros());
+    }
+
+    /**
+     * Starts counting from zero again
+     */
+    @Override
+    public void reset() {
+        sentences.reset();
+        tokens.reset();
+        unknownTokens.reset();
+        liveStates.reset();
+        decodeNanos.reset();
+        for (LongAdder bucket : latency) {
+            bucket.reset();
+        }
+        rateWindow.set(null);
+    }
+
+    /**
+     * The current rate window, closing it first if it has run long enough, with its rates filled in from
+     * the window so far if none has closed yet; null if nothing has been recorded
+     */
+    private RateWindow rates() {
+        while (true) {
+            RateWindow window = rateWindow.get();
+            if (window == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            long sentenceCount = sentences.sum();
+            long tokenCount = tokens.sum();
+            double seconds = Math.max(1, now - window.start) / 1e9;
+            double sentencesPerSecond = (sentenceCount - window.sentences) / seconds;
+            double tokensPerSecond = (tokenCount - window.tokens) / seconds;
+            if (seconds < RATE_WINDOW_SECONDS) {
+                if (!Double.isNaN(window.sentencesPerSecond)) {
+                    return window;
+                }
+                // no window has closed yet, so report the one still open
+                return new RateWindow(window.start, window.sentences, window.tokens, sentencesPerSecond, tokensPerSecond);
+            }
+            RateWindow next = new RateWindow(now, sentenceCount, tokenCount, sentencesPerSecond, tokensPerSecond);
+            if (rateWindow.compareAndSet(window, next)) {
+                return next;
+            }
+        }
+    }
+}
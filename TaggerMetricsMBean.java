@@ -0,0 +1,29 @@
+/**
+ * Management interface of TaggerMetrics, as seen through JMX
+ */
+public interface TaggerMetricsMBean {
+
+    long getSentences();
+
+    long getTokens();
+
+    long getUnknownTokens();
+
+    double getUnknownTokenRate();
+
+    double getSentencesPerSecond();
+
+    double getTokensPerSecond();
+
+    double getAverageLiveStates();
+
+    double getMeanLatencyMicros();
+
+    long getMedianLatencyMicros();
+
+    long getP99LatencyMicros();
+
+    String snapshot();
+
+    void reset();
+}
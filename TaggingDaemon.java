@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+
+/**
+ * Long-running tagger for programs on the same machine, listening on a Unix domain socket. Skipping TCP and
+ * HTTP keeps the round trip for a short sentence down to little more than decoding it.
+ *
+ * The protocol is one UTF-8 line per sentence in and one line of its tags, separated by spaces, out. Requests
+ * can be pipelined: a client may send any number of lines before reading, and gets the answers back in order.
+ * Answers are flushed whenever the daemon has caught up with everything the client has sent so far.
+ *
+ * Every connection is served on a virtual thread with a decoder of its own, which is replaced if the tagger's
+ * model, beam width or tag dictionary changes. Checking for that never locks, so connections don't wait on each
+ * other. Sentences are lowercased and split on spaces just like fileTagger() does.
+ */
+public class TaggingDaemon implements AutoCloseable {
+
+    // tagger that requests are decoded against
+    private final Viterbi tagger;
+    // path of the socket file
+    private final Path socketFile;
+    // listening channel, null until start() and after close()
+    private volatile ServerSocketChannel server;
+    // connections currently open, closed along with the daemon
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+    public TaggingDaemon(Viterbi tagger, Path socketFile) {
+        this.tagger = tagger;
+        this.socketFile = socketFile;
+    }
+
+    /**
+     * Binds the socket and starts accepting connections in the background. A socket file left over from a
+     * daemon that didn't shut down cleanly is replaced, but anything else at the path, including the socket
+     * of a daemon that is still running, makes this fail.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        removeStaleSocket();
+        ServerSocketChannel listening = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            listening.bind(UnixDomainSocketAddress.of(socketFile));
+        }
+        catch (IOException e) {
+            listening.close();
+            throw e;
+        }
+        server = listening;
+        Thread.ofPlatform().name("tagging-daemon-accept").start(() -> accept(listening));
+    }
+
+    /**
+     * Deletes the socket file if a daemon left it behind, that is if it is a socket nobody is listening on
+     */
+    private void removeStaleSocket() throws IOException {
+        if (!Files.exists(socketFile, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(socketFile)) {
+            throw new IOException(socketFile + " is already in use by something that isn't a socket.");
+        }
+        boolean listening;
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            listening = probe.connect(UnixDomainSocketAddress.of(socketFile));
+        }
+        catch (ConnectException e) {
+            // nobody is listening, so the socket is stale
+            listening = false;
+        }
+        if (listening) {
+            throw new IOException(socketFile + " is already in use by a running daemon.");
+        }
+        Files.delete(socketFile);
+    }
+
+    /**
+     * Whether a file is a socket, going by its file type where the file system reports one
+     */
+    private static boolean isSocket(Path file) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000;
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no unix view; sockets at least aren't regular files, directories or links
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and removes the socket file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (server == null) {
+            return;
+        }
+        server.close();
+        server = null;
+        for (SocketChannel connection : connections) {
+            connection.close();
+        }
+        Files.deleteIfExists(socketFile);
+    }
+
+    /**
+     * Accept loop: hands every new connection to a virtual thread of its own until the daemon is closed
+     */
+    private void accept(ServerSocketChannel listening) {
+        try {
+            while (true) {
+                SocketChannel connection = listening.accept();
+                connections.add(connection);
+                // close() may have gone over the connections before this one was added
+                if (server != listening) {
+                    connection.close();
+                    return;
+                }
+                Thread.ofVirtual().start(() -> serve(connection));
+            }
+        }
+        // also thrown as AsynchronousCloseException when close() is called during accept()
+        catch (ClosedChannelException e) {
+            // close() was called
+        }
+        catch (IOException e) {
+            System.err.println("Error while accepting connection.\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers one connection's requests until the client hangs up
+     */
+    private void serve(SocketChannel connection) {
+        try (connection) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(connection), StandardCharsets.UTF_8));
+            Decoder decoder = tagger.createDecoder(tagger.currentModel());
+            String line;
+            while ((line = in.readLine()) != null) {
+                // switch decoders if the model has been updated or swapped, or the tagger's settings changed
+                if (!tagger.isCurrent(decoder)) {
+                    decoder = tagger.createDecoder(tagger.currentModel());
+                }
+                TaggingModel current = decoder.model();
+                // make the line lowercase, split it up by spaces and decode it
+                String[] pieces = line.toLowerCase().split(" ");
+                int[] path = tagger.decode(decoder, pieces);
+                for (int k = 0; k < pieces.length; k++) {
+                    if (k > 0) {
+                        out.write(' ');
+                    }
+                    out.write(current.tagName(path[k]));
+                }
+                out.write('\n');
+                // answer pipelined requests together, once every one already received is done
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        }
+        // also thrown as AsynchronousCloseException when the daemon is closed during a read or write
+        catch (ClosedChannelException e) {
+            // the daemon was closed
+        }
+        catch (IOException e) {
+            System.err.println("IO error while serving connection.\n" + e.getMessage());
+        }
+        finally {
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     * Runs the daemon until the process is killed. Takes the socket path and either a model file written by
+     * Viterbi.save() or saveMapped(), which is reloaded whenever it changes, or a sentences file and a tags file
+     * to train on, for example
+     *   java TaggingDaemon /tmp/tagger.sock brown.model
+     *   java TaggingDaemon /tmp/tagger.sock inputs/brown-train-sentences.txt inputs/brown-train-tags.txt
+     */
+    public static void main(String[] args) throws IOException, JMException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: TaggingDaemon <socket path> <model file> | <socket path> <sentences file> <tags file>");
+            return;
+        }
+        Viterbi tagger;
+        if (args.length == 2) {
+            // serve the model file, reloading it whenever a new one is renamed over it
+            ModelHolder holder = new ModelHolder(Path.of(args[1]));
+            holder.watch();
+            tagger = Viterbi.serve(holder);
+        }
+        else {
+            tagger = new Viterbi(args[1], args[2]);
+        }
+        tagger.metrics().register("daemon");
+        TaggingDaemon daemon = new TaggingDaemon(tagger, Path.of(args[0]));
+        daemon.start();
+        System.out.println("Tagging on " + args[0]);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * What the decoder needs from a trained model, whether it lives on the heap or in a mapped file.
+ * Tags are identified by contiguous ids from 0 to numTags() - 1. Implementations are read-only and
+ * safe to share between threads. A model never changes once built, so it is a snapshot that can be swapped
+ * for another one under running decoders (see ModelHolder).
+ */
+public interface TaggingModel {
+
+    /**
+     * Number of distinct parts of speech, including the start state
+     */
+    int numTags();
+
+    /**
+     * Id of the start state #
+     */
+    int startTag();
+
+    /**
+     * Name of the part of speech with the given id
+     */
+    String tagName(int tag);
+
+    /**
+     * Id of the named part of speech, or -1 if it was never seen in training
+     */
+    int tagId(String tag);
+
+    /**
+     * Transition log probabilities laid out row by row as [from * numTags + to], -Infinity if never seen;
+     * callers must not modify it
+     */
+    double[] transitions();
+
+    /**
+     * Emission log probabilities of a word for every tag, with the unseen word penalty where a tag was
+     * never observed. Implementations either return a shared row or fill in and return scratch (which
+     * must hold numTags entries); either way callers must not modify the result.
+     */
+    double[] emissions(String word, double[] scratch);
+
+    /**
+     * Whether a row returned by emissions() is the one for words never seen in training. By default every
+     * row counts as seen.
+     */
+    default boolean isUnobserved(double[] emission) {
+        return false;
+    }
+
+    /**
+     * Writes the ids of the tags a word was observed with in training into candidates (which must hold
+     * numTags entries) and returns how many there are. Returns -1 instead if the word was never seen or was
+     * seen fewer than minCount times, meaning every tag should be considered. Models that don't know how often
+     * a word was seen treat it as seen 0 times. By default no word's tags are known, so the tag dictionary never
+     * restricts a column.
+     */
+    default int observedTags(String word, int minCount, int[] candidates) {
+        return -1;
+    }
+}
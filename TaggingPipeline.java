@@ -0,0 +1,269 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tags a file in separate stages connected by bounded queues, so reading, tokenizing and decoding all overlap:
+ *
+ *   reader -> tokenizer -> decoder workers -> ordered writer
+ *
+ * The reader and the tokenizer each get a thread, the decoders get as many as asked for, and the writer runs
+ * on the calling thread, handing every sentence's tags to a sink in file order. Lines travel in batches, and
+ * since every queue is bounded a slow sink stalls the whole pipeline instead of letting work pile up in memory.
+ * The reader also needs a permit for every batch it starts, and the writer only gives one back once a batch
+ * has gone to the sink, so at most QUEUE_BATCHES batches are ever in flight: one slow batch can't let the
+ * workers race ahead and fill up the writer with batches waiting for it.
+ */
+public class TaggingPipeline {
+
+    // number of lines read into each batch
+    private static final int BATCH_LINES = 256;
+    // number of batches each queue holds before the stage feeding it has to wait, and the most batches that
+    // can be between the reader and the sink at once
+    private static final int QUEUE_BATCHES = 16;
+    // recorded as the failure once run() is shutting down, so stages stopped by the shutdown don't report it
+    private static final Exception SHUTDOWN = new Exception("Pipeline shut down.");
+
+    /**
+     * Receives the tags of each sentence in file order, on the thread that called run()
+     */
+    public interface Sink {
+        void accept(String[] tags) throws IOException;
+    }
+
+    /**
+     * Lines of the file passing through the stages, filled in a little more by each one
+     */
+    private static final class Batch {
+        // position of the batch in the file, 0 for the first
+        final long sequence;
+        final List<String> lines;
+        // each line lowercased and split by spaces
+        String[][] pieces;
+        // tags of each line
+        String[][] tags;
+
+        Batch(long sequence, List<String> lines) {
+            this.sequence = sequence;
+            this.lines = lines;
+        }
+    }
+
+    // marks the end of the file in every queue
+    private static final Batch END = new Batch(-1, List.of());
+
+    // tagger whose model and sentence cache are used
+    private final Viterbi tagger;
+    // number of decoder worker threads
+    private final int workers;
+
+    public TaggingPipeline(Viterbi tagger, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("A pipeline needs at least 1 decoder worker, got " + workers);
+        }
+        this.tagger = tagger;
+        this.workers = workers;
+    }
+
+    /**
+     * Tags every line of a file, passing each line's tags to the sink in order, and returns the number of lines.
+     * Any error in a stage stops the whole pipeline and is thrown from here.
+     */
+    public long run(String fileName, Sink sink) throws IOException {
+        // try creating a reader for the file
+        BufferedReader input;
+        try {
+            input = CorpusFiles.open(fileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            return 0;
+        }
+        BlockingQueue<Batch> lines = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Batch> tokens = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Batch> results = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        // one permit per batch that may be read but not yet written
+        Semaphore inFlight = new Semaphore(QUEUE_BATCHES);
+        // first error raised by any stage; the writer is interrupted so it can rethrow it
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = Thread.currentThread();
+        ExecutorService pool = Executors.newFixedThreadPool(2 + workers);
+        // every worker decodes against the same model, even if another one is swapped in meanwhile
+        TaggingModel model = tagger.currentModel();
+        try {
+            pool.execute(stage(failure, writer, () -> read(input, lines, inFlight)));
+            pool.execute(stage(failure, writer, () -> tokenize(lines, tokens)));
+            for (int k = 0; k < workers; k++) {
+                Decoder decoder = tagger.createDecoder(model);
+                pool.execute(stage(failure, writer, () -> decode(decoder, tokens, results)));
+            }
+            return write(results, sink, inFlight);
+        }
+        catch (InterruptedException e) {
+            Exception cause = failure.get();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause != null) {
+                throw new IOException("Error while tagging.", cause);
+            }
+            throw new InterruptedIOException("Interrupted while tagging.");
+        }
+        finally {
+            // stop every stage that is still running; errors caused by the shutdown itself aren't failures
+            boolean failed = !failure.compareAndSet(null, SHUTDOWN);
+            pool.shutdownNow();
+            input.close();
+            if (failed) {
+                // the failing stage may not have interrupted this thread yet, so wait for every stage to end
+                // before dropping the interrupt meant for the writer
+                awaitStages(pool);
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Waits for every stage to end, without being cut short by the interrupt a failing stage sent
+     */
+    private static void awaitStages(ExecutorService pool) {
+        boolean terminated = false;
+        while (!terminated) {
+            Thread.interrupted();
+            try {
+                terminated = pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                // interrupted by the failing stage, keep waiting
+            }
+        }
+    }
+
+    /**
+     * Work done by one stage
+     */
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /**
+     * Wraps a stage so an error in it is recorded and the writer woken up; being interrupted just ends it
+     */
+    private static Runnable stage(AtomicReference<Exception> failure, Thread writer, Work work) {
+        return () -> {
+            try {
+                work.run();
+            }
+            catch (InterruptedException e) {
+                // the pipeline is shutting down
+            }
+            catch (Exception e) {
+                if (failure.compareAndSet(null, e)) {
+                    writer.interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reader stage: reads the file into batches of lines, waiting for a permit before starting each one
+     */
+    private static void read(BufferedReader input, BlockingQueue<Batch> lines, Semaphore inFlight) throws IOException, InterruptedException {
+        long sequence = 0;
+        inFlight.acquire();
+        List<String> batch = new ArrayList<>(BATCH_LINES);
+        String line;
+        while ((line = input.readLine()) != null) {
+            batch.add(line);
+            if (batch.size() == BATCH_LINES) {
+                lines.put(new Batch(sequence++, batch));
+                inFlight.acquire();
+                batch = new ArrayList<>(BATCH_LINES);
+            }
+        }
+        if (!batch.isEmpty()) {
+            lines.put(new Batch(sequence, batch));
+        }
+        lines.put(END);
+    }
+
+    /**
+     * Tokenizer stage: lowercases each line and splits it up by spaces
+     */
+    private static void tokenize(BlockingQueue<Batch> lines, BlockingQueue<Batch> tokens) throws InterruptedException {
+        Batch batch;
+        while ((batch = lines.take()) != END) {
+            batch.pieces = new String[batch.lines.size()][];
+            for (int k = 0; k < batch.pieces.length; k++) {
+                batch.pieces[k] = batch.lines.get(k).toLowerCase().split(" ");
+            }
+            tokens.put(batch);
+        }
+        tokens.put(END);
+    }
+
+    /**
+     * Decoder worker stage: decodes whole batches with the worker's own decoder
+     */
+    private void decode(Decoder decoder, BlockingQueue<Batch> tokens, BlockingQueue<Batch> results) throws InterruptedException {
+        Batch batch;
+        while ((batch = tokens.take()) != END) {
+            batch.tags = new String[batch.pieces.length][];
+            for (int k = 0; k < batch.pieces.length; k++) {
+                String[] pieces = batch.pieces[k];
+                int[] path = tagger.decode(decoder, pieces);
+                String[] tags = new String[pieces.length];
+                for (int i = 0; i < pieces.length; i++) {
+                    tags[i] = decoder.model().tagName(path[i]);
+                }
+                batch.tags[k] = tags;
+            }
+            results.put(batch);
+        }
+        // leave the end marker for the other workers, then tell the writer this one is done
+        tokens.put(END);
+        results.put(END);
+    }
+
+    /**
+     * Writer stage: puts decoded batches back in file order and hands their tags to the sink, returning each
+     * batch's permit once it is written
+     */
+    private long write(BlockingQueue<Batch> results, Sink sink, Semaphore inFlight) throws IOException, InterruptedException {
+        // batches that arrived ahead of the one due next, fewer than QUEUE_BATCHES thanks to the permits
+        Map<Long,Batch> early = new HashMap<>();
+        long next = 0;
+        long written = 0;
+        int finishedWorkers = 0;
+        while (finishedWorkers < workers) {
+            Batch batch = results.take();
+            if (batch == END) {
+                finishedWorkers++;
+                continue;
+            }
+            early.put(batch.sequence, batch);
+            while ((batch = early.remove(next)) != null) {
+                for (String[] tags : batch.tags) {
+                    sink.accept(tags);
+                    written++;
+                }
+                next++;
+                inFlight.release();
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,232 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.JMException;
+
+/**
+ * Embedded HTTP service that tags sentences for other programs. Every request runs on its own virtual thread,
+ * so thousands of short requests can be in flight at once without a thread pool to size.
+ *
+ * Endpoints (request and response bodies are UTF-8 plain text):
+ *   POST /tag    one sentence in, its tags out on one line, separated by spaces
+ *   POST /batch  one sentence per line in, one line of tags per sentence out, in the same order
+ *   GET /metrics the tagger's metrics snapshot
+ *
+ * Sentences are lowercased and split on spaces just like fileTagger() does. Decoders aren't thread safe, so
+ * requests borrow one from a pool and hand it back when they're done; the pool only ever holds as many
+ * decoders as there were concurrent requests. Updates made to the tagger are picked up by the first request
+ * after their background recompile finishes, and changes to its settings or sentence cache by the next one.
+ */
+public class TaggingServer {
+
+    // largest request body accepted, in bytes
+    private static final int MAX_BODY_BYTES = 1 << 20;
+    // number of incoming connections the operating system may queue up before they are accepted
+    private static final int BACKLOG = 1024;
+
+    // tagger that requests are decoded against
+    private final Viterbi tagger;
+    // the underlying server
+    private final HttpServer server;
+    // runs each request on a virtual thread of its own
+    private final ExecutorService executor;
+    // decoders not currently in use by any request
+    private final ConcurrentLinkedQueue<Decoder> decoders = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a server for the tagger listening on the given port (0 picks a free one); call start() to serve
+     */
+    public TaggingServer(Viterbi tagger, int port) throws IOException {
+        this.tagger = tagger;
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/tag", exchange -> handle(exchange, false));
+        server.createContext("/batch", exchange -> handle(exchange, true));
+        server.createContext("/metrics", this::metrics);
+    }
+
+    /**
+     * Starts accepting requests in the background
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, gives the ones in flight up to delaySeconds to finish, and shuts down
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.close();
+    }
+
+    /**
+     * Port the server is listening on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Tags the body of one request, a single sentence or a batch of them, and sends back the tags
+     */
+    private void handle(HttpExchange exchange, boolean batch) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                send(exchange, 405, "Only POST is supported.\n");
+                return;
+            }
+            String body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                send(exchange, 413, "Request body is larger than " + MAX_BODY_BYTES + " bytes.\n");
+                return;
+            }
+            String tags;
+            try {
+                tags = tag(body, batch);
+            }
+            catch (RuntimeException e) {
+                System.err.println("Error while tagging request.\n" + e);
+                send(exchange, 500, "Error while tagging.\n");
+                return;
+            }
+            send(exchange, 200, tags);
+        }
+    }
+
+    /**
+     * Sends back the tagger's metrics as text
+     */
+    private void metrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                send(exchange, 405, "Only GET is supported.\n");
+                return;
+            }
+            send(exchange, 200, tagger.metrics().snapshot());
+        }
+    }
+
+    /**
+     * Tags a request body with a pooled decoder, one line of tags per sentence
+     */
+    private String tag(String body, boolean batch) throws IOException {
+        StringBuilder result = new StringBuilder();
+        Decoder decoder = borrowDecoder();
+        try {
+            if (batch) {
+                // tag every line of the body
+                BufferedReader lines = new BufferedReader(new StringReader(body));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    appendTags(decoder, line, result);
+                }
+            }
+            else {
+                appendTags(decoder, body.strip(), result);
+            }
+        }
+        finally {
+            decoders.offer(decoder);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Takes a decoder from the pool, or creates one if the pool is empty or the model or the tagger's settings
+     * have changed since. Nothing here locks, so requests never wait on each other or on a recompile.
+     */
+    private Decoder borrowDecoder() {
+        Decoder decoder;
+        // decoders for an outdated model, beam width or tag dictionary are dropped
+        while ((decoder = decoders.poll()) != null) {
+            if (tagger.isCurrent(decoder)) {
+                return decoder;
+            }
+        }
+        return tagger.createDecoder(tagger.currentModel());
+    }
+
+    /**
+     * Decodes one sentence and appends its tags, separated by spaces, as one line
+     */
+    private void appendTags(Decoder decoder, String sentence, StringBuilder result) {
+        // make the sentence lowercase and split it up by spaces
+        String[] pieces = sentence.toLowerCase().split(" ");
+        int[] path = tagger.decode(decoder, pieces);
+        TaggingModel model = decoder.model();
+        for (int k = 0; k < pieces.length; k++) {
+            if (k > 0) {
+                result.append(' ');
+            }
+            result.append(model.tagName(path[k]));
+        }
+        result.append('\n');
+    }
+
+    /**
+     * Reads a request body as UTF-8, or returns null if it is larger than MAX_BODY_BYTES
+     */
+    private static String readBody(InputStream body) throws IOException {
+        byte[] bytes = body.readNBytes(MAX_BODY_BYTES + 1);
+        if (bytes.length > MAX_BODY_BYTES) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends a plain text response
+     */
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Serves a tagger over HTTP until the process is killed. Takes the port and either a model file written
+     * by Viterbi.save() or saveMapped(), which is reloaded whenever it changes, or a sentences file and a tags
+     * file to train on, for example
+     *   java TaggingServer 8080 brown.model
+     *   java TaggingServer 8080 inputs/brown-train-sentences.txt inputs/brown-train-tags.txt
+     */
+    public static void main(String[] args) throws IOException, JMException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: TaggingServer <port> <model file> | <port> <sentences file> <tags file>");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        Viterbi tagger;
+        if (args.length == 2) {
+            // serve the model file, reloading it whenever a new one is renamed over it
+            ModelHolder holder = new ModelHolder(Path.of(args[1]));
+            holder.watch();
+            tagger = Viterbi.serve(holder);
+        }
+        else {
+            tagger = new Viterbi(args[1], args[2]);
+        }
+        tagger.metrics().register("server");
+        TaggingServer server = new TaggingServer(tagger, port);
+        server.start();
+        System.out.println("Tagging on port " + server.port());
+    }
+}
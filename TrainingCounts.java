@@ -0,0 +1,504 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Raw counts gathered from a training corpus: how often each word appears as each part of speech, how often
+ * each part of speech follows another, and how often each part of speech appears at all. Sentences are added
+ * one at a time, so a corpus can be counted in a single pass without ever holding its tokens in memory.
+ *
+ * The counts match what mapWordsToPOS and mapPOStoTransition produce from getWordsOrTags: every sentence starts
+ * with a # marker, transitions carry over from the end of one sentence to the # of the next, and there are no
+ * transitions out of "." or observations of the word #.
+ *
+ * Tags and words are interned to int ids and every count is a primitive int: transitions in a dense matrix and
+ * each word's emissions in a small packed array of (tag, count) pairs, so counting a token allocates nothing.
+ */
+public class TrainingCounts {
+
+    // number of line pairs in each shard when counting in parallel
+    private static final int SHARD_LINES = 4096;
+
+    // parts of speech interned to contiguous ids in the order they were first seen, # always being 0
+    private final Map<String,Integer> tagIds = new HashMap<>();
+    private final ArrayList<String> tagNames = new ArrayList<>();
+    // words interned the same way
+    private final Vocabulary vocabulary = new Vocabulary();
+    // number of times each tag appears, including the # markers, indexed by tag id
+    private int[] tagCounts = new int[16];
+    // transition counts laid out row by row as [from * tagCapacity + to]
+    private int[] transitionCounts = new int[16 * 16];
+    // number of tags the rows of transitionCounts have room for
+    private int tagCapacity = 16;
+    // for each word id, its observed tags and their counts packed as tag, count, tag, count...
+    private int[][] emissionCounts = new int[1024][];
+    // number of ints in use in each word's packed array
+    private int[] emissionSizes = new int[1024];
+    // last tag of the previous sentence, -1 before the first one
+    private int lastTag = -1;
+    // id of the end of sentence tag ".", -1 until it has been seen
+    private int endTag = -1;
+
+    public TrainingCounts() {
+        internTag("#");
+    }
+
+    /**
+     * Reads a sentences file and its tags file in lockstep, counting one line of each at a time
+     */
+    public static TrainingCounts read(String wordsFileName, String tagsFileName) throws IOException {
+        TrainingCounts counts = new TrainingCounts();
+        // declare readers
+        BufferedReader words;
+        BufferedReader tags;
+        // try creating a reader for each file
+        try {
+            words = CorpusFiles.open(wordsFileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            // return empty counts
+            return counts;
+        }
+        try {
+            tags = CorpusFiles.open(tagsFileName);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            words.close();
+            return counts;
+        }
+        try {
+            int lineNumber = 0;
+            // read both files line by line
+            while (true) {
+                String wordLine = words.readLine();
+                String tagLine = tags.readLine();
+                // stop when either file runs out, complaining if the other one didn't
+                if (wordLine == null || tagLine == null) {
+                    if (wordLine != null || tagLine != null) {
+                        System.err.println("Sentences and tags files have different numbers of lines, stopped after line " + lineNumber + ".");
+                    }
+                    break;
+                }
+                lineNumber++;
+                counts.addLine(wordLine, tagLine, lineNumber);
+            }
+        }
+        // if error while reading, catch it
+        catch (IOException e) {
+            System.err.println("IO error while reading.\n" + e.getMessage());
+        }
+        words.close();
+        tags.close();
+        // return completed counts
+        return counts;
+    }
+
+    /**
+     * Same as read(), but counts line-aligned shards of the corpus on a pool of worker threads. Each shard is
+     * counted into its own table and the tables are merged in corpus order, along with the transitions that
+     * cross from one shard into the next, so the result is identical to counting on one thread, down to the
+     * ids tags and words are interned to.
+     */
+    public static TrainingCounts read(String wordsFileName, String tagsFileName, int threads) throws IOException {
+        // nothing to gain from a pool with one thread
+        if (threads <= 1) {
+            return read(wordsFileName, tagsFileName);
+        }
+        TrainingCounts merged = new TrainingCounts();
+        // declare readers
+        BufferedReader words;
+        BufferedReader tags;
+        // try creating a reader for each file
+        try {
+            words = CorpusFiles.open(wordsFileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            // return empty counts
+            return merged;
+        }
+        try {
+            tags = CorpusFiles.open(tagsFileName);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            words.close();
+            return merged;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // the table of each shard in corpus order, dropped once it has been merged
+        ArrayList<Future<TrainingCounts>> shards = new ArrayList<>();
+        try {
+            // number of the oldest shards already merged
+            int merges = 0;
+            int lineNumber = 0;
+            boolean done = false;
+            // read both files line by line, cutting them into shards
+            try {
+                while (!done) {
+                    ArrayList<String> shardWords = new ArrayList<>(SHARD_LINES);
+                    ArrayList<String> shardTags = new ArrayList<>(SHARD_LINES);
+                    int firstLine = lineNumber + 1;
+                    while (shardWords.size() < SHARD_LINES) {
+                        String wordLine = words.readLine();
+                        String tagLine = tags.readLine();
+                        // stop when either file runs out, complaining if the other one didn't
+                        if (wordLine == null || tagLine == null) {
+                            if (wordLine != null || tagLine != null) {
+                                System.err.println("Sentences and tags files have different numbers of lines, stopped after line " + lineNumber + ".");
+                            }
+                            done = true;
+                            break;
+                        }
+                        lineNumber++;
+                        shardWords.add(wordLine);
+                        shardTags.add(tagLine);
+                    }
+                    if (!shardWords.isEmpty()) {
+                        shards.add(pool.submit(() -> {
+                            // count the shard as if it were the start of a corpus
+                            TrainingCounts table = new TrainingCounts();
+                            for (int k = 0; k < shardWords.size(); k++) {
+                                table.addLine(shardWords.get(k), shardTags.get(k), firstLine + k);
+                            }
+                            return table;
+                        }));
+                        // don't let the reader get too far ahead of the workers
+                        if (shards.size() - merges > threads * 4) {
+                            merged.merge(shards.get(merges).get());
+                            shards.set(merges++, null);
+                        }
+                    }
+                }
+            }
+            // if error while reading, catch it and keep what was read so far, just like read() does
+            catch (IOException e) {
+                System.err.println("IO error while reading.\n" + e.getMessage());
+            }
+            // merge the rest of the shards
+            while (merges < shards.size()) {
+                merged.merge(shards.get(merges).get());
+                shards.set(merges++, null);
+            }
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Counting failed.", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while counting.");
+        }
+        finally {
+            pool.shutdownNow();
+            words.close();
+            tags.close();
+        }
+        // return completed counts
+        return merged;
+    }
+
+    /**
+     * Adds the table of the next shard in corpus order, stitching it on with the transition from the end of
+     * the previous shard into the # of its first sentence
+     */
+    private void merge(TrainingCounts shard) {
+        String shardLastTag = shard.lastTag();
+        // every line of the shard was skipped
+        if (shardLastTag == null) {
+            return;
+        }
+        if (lastTag >= 0) {
+            countTransition(lastTag, 0);
+        }
+        add(shard);
+        lastTag = internTag(shardLastTag);
+    }
+
+    /**
+     * Splits one line of each file and counts them, skipping the pair if they don't line up
+     */
+    private void addLine(String wordLine, String tagLine, int lineNumber) {
+        // only sentences are lowercased, not tags
+        String[] sentenceWords = wordLine.toLowerCase().split(" ");
+        String[] sentenceTags = tagLine.split(" ");
+        if (sentenceWords.length != sentenceTags.length) {
+            System.err.println("Skipping line " + lineNumber + ": " + sentenceWords.length + " words but " + sentenceTags.length + " tags.");
+            return;
+        }
+        addSentence(sentenceWords, sentenceTags);
+    }
+
+    /**
+     * Adds every count from another table to this one. Transitions between the two tables' sentences are not
+     * added; read() takes care of those when merging shards.
+     */
+    public void add(TrainingCounts other) {
+        // map the other table's tag ids onto ours
+        int[] tagMap = new int[other.numTags()];
+        for (int tag = 0; tag < tagMap.length; tag++) {
+            tagMap[tag] = internTag(other.tagName(tag));
+            tagCounts[tagMap[tag]] += other.tagCounts[tag];
+        }
+        for (int from = 0; from < tagMap.length; from++) {
+            for (int to = 0; to < tagMap.length; to++) {
+                transitionCounts[tagMap[from] * tagCapacity + tagMap[to]] += other.transitionCount(from, to);
+            }
+        }
+        for (int otherWord = 0; otherWord < other.numWords(); otherWord++) {
+            int word = internWord(other.word(otherWord));
+            int[] pairs = other.emissionCounts[otherWord];
+            for (int k = 0; k < other.emissionSizes[otherWord]; k += 2) {
+                countEmission(word, tagMap[pairs[k]], pairs[k + 1]);
+            }
+        }
+    }
+
+    /**
+     * Counts one sentence; words and tags must be the same length
+     */
+    public void addSentence(String[] words, String[] tags) {
+        // every sentence starts at the # marker
+        int prevTag = 0;
+        tagCounts[0]++;
+        if (lastTag >= 0) {
+            countTransition(lastTag, 0);
+        }
+        for (int k = 0; k < words.length; k++) {
+            int curTag = internTag(tags[k]);
+            tagCounts[curTag]++;
+            countTransition(prevTag, curTag);
+            // the start marker is only needed for transitions
+            if (!words[k].equals("#")) {
+                countEmission(internWord(words[k]), curTag, 1);
+            }
+            prevTag = curTag;
+        }
+        lastTag = prevTag;
+    }
+
+    /**
+     * Id of a tag, giving it the next free id (and room in every tag-indexed array) if it doesn't have one yet
+     */
+    private int internTag(String tag) {
+        Integer id = tagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        int newId = tagNames.size();
+        tagIds.put(tag, newId);
+        tagNames.add(tag);
+        if (tag.equals(".")) {
+            endTag = newId;
+        }
+        if (newId == tagCounts.length) {
+            tagCounts = Arrays.copyOf(tagCounts, newId * 2);
+        }
+        // widen the transition matrix, copying each row into its new place
+        if (newId == tagCapacity) {
+            int newCapacity = tagCapacity * 2;
+            int[] widened = new int[newCapacity * newCapacity];
+            for (int from = 0; from < tagCapacity; from++) {
+                System.arraycopy(transitionCounts, from * tagCapacity, widened, from * newCapacity, tagCapacity);
+            }
+            transitionCounts = widened;
+            tagCapacity = newCapacity;
+        }
+        return newId;
+    }
+
+    /**
+     * Id of a word, giving it the next free id if it doesn't have one yet
+     */
+    private int internWord(String word) {
+        int newId = vocabulary.size();
+        int id = vocabulary.add(word);
+        if (id != newId) {
+            return id;
+        }
+        if (newId == emissionCounts.length) {
+            emissionCounts = Arrays.copyOf(emissionCounts, newId * 2);
+            emissionSizes = Arrays.copyOf(emissionSizes, newId * 2);
+        }
+        emissionCounts[newId] = new int[4];
+        return newId;
+    }
+
+    /**
+     * Counts a transition, unless it starts at the end of a sentence
+     */
+    private void countTransition(int curTag, int nextTag) {
+        // there should not be a transition at the end of the sentence
+        if (curTag == endTag) {
+            return;
+        }
+        transitionCounts[curTag * tagCapacity + nextTag]++;
+    }
+
+    /**
+     * Adds to the number of times a word was seen as a tag; words rarely have more than a few tags, so a
+     * linear scan of its pairs beats any hashing
+     */
+    private void countEmission(int word, int tag, int count) {
+        int[] pairs = emissionCounts[word];
+        int size = emissionSizes[word];
+        for (int k = 0; k < size; k += 2) {
+            if (pairs[k] == tag) {
+                pairs[k + 1] += count;
+                return;
+            }
+        }
+        // first time this word has been seen as this tag
+        if (size == pairs.length) {
+            pairs = Arrays.copyOf(pairs, size * 2);
+            emissionCounts[word] = pairs;
+        }
+        pairs[size] = tag;
+        pairs[size + 1] = count;
+        emissionSizes[word] = size + 2;
+    }
+
+    /**
+     * Number of distinct tags seen, including #
+     */
+    public int numTags() {
+        return tagNames.size();
+    }
+
+    /**
+     * Name of the tag with the given id
+     */
+    public String tagName(int tag) {
+        return tagNames.get(tag);
+    }
+
+    /**
+     * Id of the named tag, or -1 if it was never seen
+     */
+    public int tagId(String tag) {
+        Integer id = tagIds.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Number of times a tag appears, including the # markers
+     */
+    public int tagCount(int tag) {
+        return tagCounts[tag];
+    }
+
+    /**
+     * Number of times the second tag follows the first
+     */
+    public int transitionCount(int from, int to) {
+        return transitionCounts[from * tagCapacity + to];
+    }
+
+    /**
+     * Number of distinct words seen
+     */
+    public int numWords() {
+        return vocabulary.size();
+    }
+
+    /**
+     * The word with the given id
+     */
+    public String word(int word) {
+        return vocabulary.word(word);
+    }
+
+    /**
+     * Id of a word, or -1 if it was never seen
+     */
+    public int wordId(String word) {
+        return vocabulary.id(word);
+    }
+
+    /**
+     * Number of distinct tags a word has been seen as
+     */
+    public int observedTags(int word) {
+        return emissionSizes[word] / 2;
+    }
+
+    /**
+     * Id of the k-th tag a word has been seen as
+     */
+    public int observedTag(int word, int k) {
+        return emissionCounts[word][2 * k];
+    }
+
+    /**
+     * Number of times a word has been seen as its k-th tag
+     */
+    public int observedCount(int word, int k) {
+        return emissionCounts[word][2 * k + 1];
+    }
+
+    /**
+     * Name of the last tag of the most recent sentence, which the next sentence's # will transition from
+     */
+    String lastTag() {
+        return lastTag < 0 ? null : tagNames.get(lastTag);
+    }
+
+    /**
+     * Emission log probabilities, dividing each word's count as a tag by the total count of that tag
+     */
+    public Map<String,Map<String,Double>> normalizedWordToPOS() {
+        Map<String,Map<String,Double>> normalized = new HashMap<>();
+        // loop over words
+        for (int word = 0; word < vocabulary.size(); word++) {
+            Map<String,Double> row = new HashMap<>();
+            // loop over tags for each word
+            for (int k = 0; k < observedTags(word); k++) {
+                int tag = observedTag(word, k);
+                row.put(tagNames.get(tag), Math.log((double) observedCount(word, k) / tagCounts[tag]));
+            }
+            normalized.put(vocabulary.word(word), row);
+        }
+        return normalized;
+    }
+
+    /**
+     * Transition log probabilities, dividing each transition count by the total number of transitions out
+     * of the first tag
+     */
+    public Map<String,Map<String,Double>> normalizedPOStoTransition() {
+        Map<String,Map<String,Double>> normalized = new HashMap<>();
+        // loop over the tags
+        for (int from = 0; from < tagNames.size(); from++) {
+            // add up every transition out of the tag
+            long totalFreq = 0;
+            for (int to = 0; to < tagNames.size(); to++) {
+                totalFreq += transitionCount(from, to);
+            }
+            // tags nothing ever follows get no row at all
+            if (totalFreq == 0) {
+                continue;
+            }
+            // normalize each of them by that total
+            Map<String,Double> row = new HashMap<>();
+            for (int to = 0; to < tagNames.size(); to++) {
+                if (transitionCount(from, to) > 0) {
+                    row.put(tagNames.get(to), Math.log((double) transitionCount(from, to) / totalFreq));
+                }
+            }
+            normalized.put(tagNames.get(from), row);
+        }
+        return normalized;
+    }
+}
@@ -1,11 +1,26 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 /**
  * Part of speech tagging using a Hidden Markov Model and Viterbi algorithm
@@ -16,25 +31,260 @@ import java.util.Scanner;
 
 public class Viterbi {
 
-    // list of words and tags parsed from a training file
-    public ArrayList<String> words;
-    public ArrayList<String> tags;
-    // maps words to parts of speech and the words likelihood of being that part of speech
-    public Map<String,Map<String,Double>> wordToPOS;
-    // maps parts of speech to the other parts of speech and the likelihood that the second part of speech follows the first
-    public Map<String,Map<String,Double>> POStoTransition;
+    // int-indexed model the tagger actually decodes with (see wordToPOS() and POStoTransition() for the
+    // probabilities as maps); only replaced whole, so other threads can read it without locking
+    public volatile TaggingModel model;
+    // raw counts the model was compiled from, kept so update() can add to them (null for loaded models)
+    private TrainingCounts counts;
+    // words and tags whose rows have changed since the model was last compiled
+    private final Set<String> changedWords = new HashSet<>();
+    private final Set<String> changedTags = new HashSet<>();
+    // whether a background recompile of those changes has been started but hasn't run yet
+    private boolean refreshScheduled;
+    // number of states kept per lattice column, Decoder.EXACT for full Viterbi
+    private volatile int beamWidth = Decoder.EXACT;
+    // training count above which a word's lattice column only holds its observed tags, Decoder.ALL_TAGS for never
+    private volatile int tagDictionaryCount = Decoder.ALL_TAGS;
+    // decoded sentences kept for reuse, null when caching is off
+    private volatile SentenceCache sentenceCache;
+    // holder whose model this tagger serves, null unless created with serve()
+    private final ModelHolder holder;
+    // what every decoder this tagger creates has done
+    private final TaggerMetrics metrics = new TaggerMetrics();
     // unseen word penalty
     public final int UNOBSERVED = -30;
+    // number of sentences handed to a worker at a time when tagging in parallel
+    private static final int PARALLEL_BATCH = 256;
 
     /**
-     * Constructor that takes training files and uses static methods to create
+     * Constructor that takes training files and counts them in a single pass to create
      * observation and transition probability maps
      */
     public Viterbi(String wordsFileName, String tagsFileName) throws IOException {
-        words = getWordsOrTags(wordsFileName, false);
-        tags = getWordsOrTags(tagsFileName, true);
-        wordToPOS = normalizeWordToPOS(mapWordsToPOS(words,tags),tags);
-        POStoTransition = normalizePOSToTransition(mapPOStoTransition(tags));
+        this(wordsFileName, tagsFileName, 1);
+    }
+
+    /**
+     * Same as above, but counts shards of the training files on the given number of threads
+     */
+    public Viterbi(String wordsFileName, String tagsFileName, int threads) throws IOException {
+        counts = TrainingCounts.read(wordsFileName, tagsFileName, threads);
+        model = new CompiledModel(counts, UNOBSERVED);
+        holder = null;
+    }
+
+    /**
+     * Constructor for a model that has already been trained and compiled, served from holder if it isn't null
+     */
+    private Viterbi(TaggingModel model, ModelHolder holder) {
+        this.model = model;
+        this.holder = holder;
+    }
+
+    /**
+     * Maps words to parts of speech and the words likelihood of being that part of speech. The map is built
+     * from the training counts on every call rather than kept around, so only callers that need it pay for it.
+     * Returns null for loaded models, which have no counts.
+     */
+    public synchronized Map<String,Map<String,Double>> wordToPOS() {
+        return counts == null ? null : counts.normalizedWordToPOS();
+    }
+
+    /**
+     * Maps parts of speech to the other parts of speech and the likelihood that the second part of speech
+     * follows the first. Built on every call just like wordToPOS(); null for loaded models.
+     */
+    public synchronized Map<String,Map<String,Double>> POStoTransition() {
+        return counts == null ? null : counts.normalizedPOStoTransition();
+    }
+
+    /**
+     * Adds one more tagged sentence to the training counts, as if it had been appended to the training files.
+     * The model isn't recompiled right away: a background thread re-derives only the emission rows of these
+     * words and the transitions out of these tags, batching up every update made in the meantime. Bulk taggers
+     * like fileTagger() finish that recompile before they start, so they always see every update so far.
+     */
+    public synchronized void update(String[] sentenceTokens, String[] sentenceTags) {
+        if (counts == null) {
+            throw new IllegalStateException("Only models trained in this process can be updated, not loaded ones.");
+        }
+        if (sentenceTokens.length != sentenceTags.length) {
+            throw new IllegalArgumentException(sentenceTokens.length + " words but " + sentenceTags.length + " tags.");
+        }
+        // words are lowercased just like the training sentences
+        String[] words = new String[sentenceTokens.length];
+        for (int k = 0; k < words.length; k++) {
+            words[k] = sentenceTokens[k].toLowerCase();
+        }
+        // the sentence adds transitions out of the previous sentence's last tag, #, and each of its own tags
+        if (counts.lastTag() != null) {
+            changedTags.add(counts.lastTag());
+        }
+        changedTags.add("#");
+        changedTags.addAll(Arrays.asList(sentenceTags));
+        changedWords.addAll(Arrays.asList(words));
+        counts.addSentence(words, sentenceTags);
+        // recompile off the tagging path, so requests never wait for it
+        if (!refreshScheduled) {
+            refreshScheduled = true;
+            Thread.ofVirtual().name("model-refresh").start(this::refresh);
+        }
+    }
+
+    /**
+     * Re-derives the rows changed by update() since the last time, if there were any, and switches to a model
+     * swapped into the holder
+     */
+    private synchronized void refresh() {
+        refreshScheduled = false;
+        // switch to a model swapped into the holder
+        if (holder != null && holder.get() != model) {
+            model = holder.get();
+        }
+        if (!changedWords.isEmpty() || !changedTags.isEmpty()) {
+            model = ((CompiledModel) model).update(counts, changedWords, changedTags);
+            changedWords.clear();
+            changedTags.clear();
+        }
+    }
+
+    /**
+     * Switches decoding to beam search, keeping only the best beamWidth states of each lattice column.
+     * Decoder.EXACT goes back to full Viterbi.
+     */
+    public void setBeamWidth(int beamWidth) {
+        this.beamWidth = beamWidth;
+    }
+
+    /**
+     * Restricts the lattice column of every word seen at least minCount times in training to the tags it was
+     * seen with, instead of scoring the whole tagset. Decoder.ALL_TAGS goes back to scoring every tag.
+     */
+    public void setTagDictionary(int minCount) {
+        this.tagDictionaryCount = minCount;
+    }
+
+    /**
+     * Keeps up to capacity recently decoded sentences and answers repeats of them without decoding;
+     * 0 turns caching off. The cache's own hits() and misses() count what it answered, since metrics() only
+     * sees the misses.
+     */
+    public void setSentenceCache(int capacity) {
+        sentenceCache = capacity == 0 ? null : new SentenceCache(capacity);
+    }
+
+    /**
+     * The sentence cache, for its hit and miss counts; null when caching is off
+     */
+    public SentenceCache sentenceCache() {
+        return sentenceCache;
+    }
+
+    /**
+     * Counts of everything decoded by this tagger's decoders, on every thread; register() it to read them over JMX.
+     * Sentences answered from the sentence cache never reach a decoder, so they aren't counted.
+     */
+    public TaggerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Tag ids of a split sentence from the given decoder, or from the sentence cache if it has them. Only the
+     * first pieces.length entries are meaningful and callers must not modify the result.
+     */
+    public int[] decode(Decoder decoder, String[] pieces) {
+        SentenceCache cache = sentenceCache;
+        return cache == null ? decoder.decode(pieces) : cache.decode(decoder, pieces);
+    }
+
+    /**
+     * A decoder for the current model, beam width and tag dictionary, without picking up pending updates first
+     */
+    private Decoder newDecoder() {
+        return new Decoder(model, beamWidth, tagDictionaryCount, metrics);
+    }
+
+    /**
+     * The model to decode against right now, for callers that decode on threads of their own: the holder's
+     * current model (see serve()), or else the last one compiled from update(). Never locks or recompiles, so
+     * it is cheap enough to call on every request; updates show up once their background recompile is done.
+     */
+    public TaggingModel currentModel() {
+        return holder != null ? holder.get() : model;
+    }
+
+    /**
+     * Whether a decoder is over currentModel() with this tagger's current beam width and tag dictionary, so
+     * callers that keep decoders around know when to replace them. Never locks.
+     */
+    public boolean isCurrent(Decoder decoder) {
+        return decoder.model() == currentModel()
+                && decoder.beamWidth() == beamWidth
+                && decoder.tagDictionaryCount() == tagDictionaryCount;
+    }
+
+    /**
+     * A new decoder over the model as of every update() so far, with this tagger's beam width and tag
+     * dictionary. This finishes any pending recompile first, so it can wait on one; request handlers should
+     * use createDecoder(currentModel()) instead.
+     */
+    public synchronized Decoder createDecoder() {
+        refresh();
+        return newDecoder();
+    }
+
+    /**
+     * A new decoder over the given model with this tagger's beam width and tag dictionary, recording into metrics()
+     */
+    public Decoder createDecoder(TaggingModel model) {
+        return new Decoder(model, beamWidth, tagDictionaryCount, metrics);
+    }
+
+    /**
+     * Saves the trained model so later runs can load it instead of retraining
+     */
+    public void save(Path file) throws IOException {
+        compiledModel().save(file);
+    }
+
+    /**
+     * Saves the trained model in the memory-mappable layout read by map()
+     */
+    public void saveMapped(Path file) throws IOException {
+        MappedModel.write(compiledModel(), file);
+    }
+
+    /**
+     * The model as a heap-resident CompiledModel, which is what both save formats are written from
+     */
+    private CompiledModel compiledModel() {
+        if (!(model instanceof CompiledModel)) {
+            throw new IllegalStateException("Only trained or loaded models can be saved, not mapped ones.");
+        }
+        return (CompiledModel) model;
+    }
+
+    /**
+     * Creates a tagger from a model written by save(), skipping training entirely
+     */
+    public static Viterbi load(Path file) throws IOException {
+        return new Viterbi(CompiledModel.load(file), null);
+    }
+
+    /**
+     * Creates a tagger that queries a file written by saveMapped() in place, sharing it with every other
+     * process that maps the same file
+     */
+    public static Viterbi map(Path file) throws IOException {
+        return new Viterbi(MappedModel.open(file), null);
+    }
+
+    /**
+     * Creates a tagger that always serves the model in a holder, switching to a new one whenever it is swapped
+     * in. Tagging already under way finishes with the model it started with.
+     */
+    public static Viterbi serve(ModelHolder holder) {
+        return new Viterbi(holder.get(), holder);
     }
 
     /**
@@ -49,7 +299,7 @@ public class Viterbi {
         ArrayList<String> result = new ArrayList<>();
         // try creating a reader for the file
         try {
-            input = new BufferedReader(new FileReader(fileName));
+            input = CorpusFiles.open(fileName);
         }
         // catch if the file doesn't exist
         catch (FileNotFoundException e) {
@@ -200,13 +450,16 @@ public class Viterbi {
      * Takes a text file and returns an list of guessed parts of speech sequentially
      */
     public ArrayList<String> fileTagger(String fileName) throws IOException {
+        // pick up any updates to the model, then stick with it for the whole file; the decoder is this call's
+        // own, so taggers on other threads can't disturb its buffers
+        Decoder fileDecoder = createDecoder();
         // declare reader
         BufferedReader input = null;
         // initialize final list
         ArrayList<String> allTags = new ArrayList();
         // try creating a reader for the file
         try {
-            input = new BufferedReader(new FileReader(fileName));
+            input = CorpusFiles.open(fileName);
         }
         // catch if the file doesn't exist
         catch (FileNotFoundException e) {
@@ -216,89 +469,12 @@ public class Viterbi {
             String line;
             // read input line by line
             while ((line = input.readLine()) != null) {
-                // create an arraylist with the current possible states, adding the start state #
-                ArrayList<String> curStates = new ArrayList();
-                curStates.add("#");
-                // create a map that maps from states to scores, adding the start state # and its score 0
-                Map<String,Double> curScores = new HashMap<>();
-                curScores.put("#", 0.0);
-                // initialize a map that will allow tracing back along the best possible path of tags
-                ArrayList<Map<String,String>> backTrack = new ArrayList<>();
-                // create an arraylist to hold potential next states
-                ArrayList nextStates = new ArrayList();
-                // make line lowercase
-                line = line.toLowerCase();
-                // split line up by spaces
-                String[] pieces = line.split(" ");
-                // loop over words
-                for (int i = 0; i<pieces.length; i++) {
-                    // create a numbered map entry for each word
-                    backTrack.add(i, new HashMap<>());
-                    // initialize map for next scores
-                    HashMap<String, Double> nextScores = new HashMap<>();
-                    // loop over current possible states
-                    for (String curState : curStates) {
-                        // initialize arraylist for potential next states
-                        nextStates = new ArrayList();
-                        // if part of speech has been seen before
-                        if (POStoTransition.containsKey(curState)) {
-                            // loop over possible transitions
-                            for (String nextState : POStoTransition.get(curState).keySet()) {
-                                // add each possible next state to next states
-                                nextStates.add(nextState);
-                                // declare a double for the score of each possible next state
-                                double nextScore;
-                                // calculate the score by adding the score of the current state, the transition score, and the observation score
-                                if (!wordToPOS.containsKey(pieces[i]) || !wordToPOS.get(pieces[i]).containsKey(nextState)) {
-                                    // used final variable as observation score if word is new
-                                    nextScore = curScores.get(curState) + POStoTransition.get(curState).get(nextState) + UNOBSERVED;
-                                } else {
-                                    nextScore = curScores.get(curState) + POStoTransition.get(curState).get(nextState) + wordToPOS.get(pieces[i]).get(nextState);
-                                }
-                                // if next scores doesn't have any scores for the next state or if the score is better than previous scores
-                                if (!nextScores.containsKey(nextState) || nextScore > nextScores.get(nextState)) {
-                                    // add it to next scores
-                                    nextScores.put(nextState, nextScore);
-                                    // add the current and previous state to backtrack to remember how we got there
-                                    backTrack.get(i).put(nextState, curState);
-                                }
-                            }
-                        }
-                    }
-                    // make potential next states and scores the current possible states and scores
-                    curStates = nextStates;
-                    curScores = nextScores;
-                }
-                //
-                ArrayList<String> result = new ArrayList();
-                // initialize current tag to empty
-                String tag = "";
-                // make the best score worse than it ever will be for any state
-                Double score = -1000.0;
-                // loop over scores for current tag
-                for (String curTag: curScores.keySet()) {
-                    // if the tags score is better than the previous best score
-                    if(curScores.get(curTag) > score) {
-                        // update the score
-                        score = curScores.get(curTag);
-                        // and the tag
-                        tag = curTag;
-                    }
-                }
-                // store that tag as the previous one
-                String prevTag = tag;
-                // loop over backtrack, starting at the end
-                for (int k = backTrack.size()-1; k>=0; k--) {
-                    // add the current tag to the front of the result list
-                    result.add(0,tag);
-                    // add the tag that got us to that tag
-                    prevTag = backTrack.get(k).get(tag);
-                    // work backwards, updating tag to previous
-                    tag = prevTag;
-                }
-                // add each line of tags to the final list of tags
-                for (String s: result) {
-                    allTags.add(s);
+                // make line lowercase and split it up by spaces
+                String[] pieces = line.toLowerCase().split(" ");
+                // decode the line and add its tags to the final list of tags
+                int[] path = decode(fileDecoder, pieces);
+                for (int k = 0; k < pieces.length; k++) {
+                    allTags.add(fileDecoder.model().tagName(path[k]));
                 }
             }
         }
@@ -311,32 +487,232 @@ public class Viterbi {
         return allTags;
     }
     /**
-     * Tests the accuracy of the fileTagger method by comparing guessed tags to actual tags
+     * Same as fileTagger(), but hands batches of sentences to a pool of worker threads. Every sentence is
+     * decoded independently, so the tags come back exactly as fileTagger() would return them, in file order.
      */
-    public double testAccuracy(ArrayList<String> foundTags, ArrayList<String> realTags) {
-        // initialize doubles for total tags and correct ones
-        double totalTags = 0.0;
-        double correctTags = 0.0;
-        // strip out # from the tags list
-        for (int k = 0; k<realTags.size(); k++) {
-            if (realTags.get(k).equals("#")) {
-                realTags.remove(k);
+    public ArrayList<String> fileTagger(String fileName, int threads) throws IOException {
+        // nothing to gain from a pool with one thread
+        if (threads <= 1) {
+            return fileTagger(fileName);
+        }
+        // pick up any updates to the model, then stick with it for the whole file
+        refresh();
+        TaggingModel fileModel = model;
+        // initialize final list
+        ArrayList<String> allTags = new ArrayList<>();
+        // declare reader
+        BufferedReader input;
+        // try creating a reader for the file
+        try {
+            input = CorpusFiles.open(fileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            // return empty list
+            return allTags;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // each worker thread decodes with its own decoder
+        ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(() -> createDecoder(fileModel));
+        // batches handed to the pool but not yet collected, oldest first
+        ArrayDeque<Future<ArrayList<String>>> pending = new ArrayDeque<>();
+        try {
+            ArrayList<String> batch = new ArrayList<>(PARALLEL_BATCH);
+            String line;
+            // read input line by line
+            while ((line = input.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == PARALLEL_BATCH) {
+                    pending.add(pool.submit(batchTask(batch, decoders)));
+                    batch = new ArrayList<>(PARALLEL_BATCH);
+                    // don't let the reader get too far ahead of the workers
+                    if (pending.size() > threads * 4) {
+                        collect(pending.poll(), allTags);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(pool.submit(batchTask(batch, decoders)));
             }
+            // gather the remaining batches in the order they were submitted
+            while (!pending.isEmpty()) {
+                collect(pending.poll(), allTags);
+            }
+        }
+        finally {
+            pool.shutdownNow();
+            input.close();
         }
-        // loop over real tags (and guessed tags, they should be the same size)
-        for (int k =0; k<realTags.size();k++) {
-            // increment total tags
-            totalTags++;
-            // if the tags match
-            if(foundTags.get(k).equals(realTags.get(k))) {
-                // increment correct tags
-                correctTags++;
+        // return completed array
+        return allTags;
+    }
+
+    /**
+     * Work for one batch of lines: lowercase, split and decode each line and return all of their tags in order
+     */
+    private Callable<ArrayList<String>> batchTask(ArrayList<String> lines, ThreadLocal<Decoder> decoders) {
+        return () -> {
+            Decoder worker = decoders.get();
+            ArrayList<String> batchTags = new ArrayList<>();
+            for (String line : lines) {
+                String[] pieces = line.toLowerCase().split(" ");
+                int[] path = decode(worker, pieces);
+                for (int k = 0; k < pieces.length; k++) {
+                    batchTags.add(worker.model().tagName(path[k]));
+                }
             }
+            return batchTags;
+        };
+    }
+
+    /**
+     * Waits for a batch to finish and appends its tags to the final list
+     */
+    private static void collect(Future<ArrayList<String>> batch, ArrayList<String> allTags) throws IOException {
+        try {
+            allTags.addAll(batch.get());
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Tagging failed.", e.getCause());
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while tagging.");
+        }
+    }
+    /**
+     * Tags an in-memory list of sentences, each lowercased and split on spaces just like a line of a file
+     * given to fileTagger(). Returns the tags of each sentence, in the order the sentences were given.
+     */
+    public List<List<String>> tagBatch(List<String> sentences) {
+        String[][] tokens = new String[sentences.size()][];
+        for (int k = 0; k < tokens.length; k++) {
+            tokens[k] = sentences.get(k).toLowerCase().split(" ");
+        }
+        // pick up any updates to the model; the decoder is this call's own, so concurrent batches don't share buffers
+        Decoder batchDecoder = createDecoder();
+        int[][] paths = decodeBatch(batchDecoder, tokens);
+        List<List<String>> allTags = new ArrayList<>(paths.length);
+        for (int k = 0; k < paths.length; k++) {
+            // reuse the token array to hold the tags
+            for (int i = 0; i < paths[k].length; i++) {
+                tokens[k][i] = batchDecoder.model().tagName(paths[k][i]);
+            }
+            allTags.add(Arrays.asList(tokens[k]));
+        }
+        return allTags;
+    }
+
+    /**
+     * Tags sentences that are already lowercased and split into words, returning the tag ids of each sentence
+     * (see currentModel().tagName()) in the order the sentences were given. Each call gets a decoder of its own,
+     * sized for the longest sentence once, and sentences are decoded shortest first so consecutive ones touch the same
+     * buffers.
+     */
+    public int[][] tagBatch(String[][] sentences) {
+        // pick up any updates to the model
+        return decodeBatch(createDecoder(), sentences);
+    }
+
+    /**
+     * Decodes a batch of split sentences with one decoder, shortest first, returning their tag ids in order
+     */
+    private int[][] decodeBatch(Decoder batchDecoder, String[][] sentences) {
+        // sort (length, index) pairs packed into longs
+        long[] order = new long[sentences.length];
+        int longest = 0;
+        for (int k = 0; k < sentences.length; k++) {
+            order[k] = (long) sentences[k].length << 32 | k;
+            longest = Math.max(longest, sentences[k].length);
+        }
+        Arrays.sort(order);
+        batchDecoder.reserve(longest);
+        int[][] paths = new int[sentences.length][];
+        for (long entry : order) {
+            int k = (int) entry;
+            int[] path = decode(batchDecoder, sentences[k]);
+            paths[k] = Arrays.copyOf(path, sentences[k].length);
+        }
+        return paths;
+    }
+
+    /**
+     * Tags a file through a TaggingPipeline, so reading, tokenizing and decoding on the given number of worker
+     * threads all overlap, and writes each line's tags, separated by spaces, as one line of the output file.
+     * Returns the number of lines tagged.
+     */
+    public long pipelineTagger(String fileName, String outputFileName, int workers) throws IOException {
+        try (BufferedWriter output = Files.newBufferedWriter(Path.of(outputFileName))) {
+            return new TaggingPipeline(this, workers).run(fileName, tags -> {
+                output.write(String.join(" ", tags));
+                output.newLine();
+            });
+        }
+    }
+
+    /**
+     * Lazily tags a file one sentence at a time, so memory stays constant no matter how long the file is.
+     * Each element is the list of tags for one line. The file stays open until the stream is closed, so
+     * use it in a try-with-resources block. The stream has its own decoder and must be consumed sequentially.
+     */
+    public Stream<List<String>> tagStream(String fileName) throws IOException {
+        // pick up any updates to the model
+        refresh();
+        // declare reader
+        BufferedReader input;
+        // try creating a reader for the file
+        try {
+            input = CorpusFiles.open(fileName);
+        }
+        // catch if the file doesn't exist
+        catch (FileNotFoundException e) {
+            System.err.println("Cannot open file.\n" + e.getMessage());
+            // return empty stream
+            return Stream.empty();
+        }
+        Decoder streamDecoder = newDecoder();
+        return input.lines()
+                .map(line -> {
+                    // make line lowercase, split it up by spaces and decode it
+                    String[] pieces = line.toLowerCase().split(" ");
+                    int[] path = decode(streamDecoder, pieces);
+                    // reuse the word array to hold the tags
+                    for (int k = 0; k < pieces.length; k++) {
+                        pieces[k] = streamDecoder.model().tagName(path[k]);
+                    }
+                    return Arrays.asList(pieces);
+                })
+                .onClose(() -> {
+                    try {
+                        input.close();
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+    /**
+     * Tests the accuracy of the fileTagger method by comparing guessed tags to actual tags. The # markers in
+     * the actual tags are skipped over rather than removed, so neither list is modified.
+     */
+    public double testAccuracy(ArrayList<String> foundTags, ArrayList<String> realTags) {
+        TagEvaluator evaluator = new TagEvaluator();
+        evaluator.add(foundTags.iterator(), realTags.iterator());
         // print results
-        System.out.println("The tagger got a total of "+correctTags+" tags correct out of " + totalTags + " total, with an accuracy of " + correctTags/totalTags*100 + "%");
+        evaluator.print();
         // return accuracy
-        return correctTags/totalTags;
+        return evaluator.accuracy();
+    }
+
+    /**
+     * Same as tagging a file and passing the result to testAccuracy(), but reads the sentences and their
+     * actual tags in lockstep one line at a time, so memory stays constant no matter how large the test set is
+     */
+    public double evaluate(String sentencesFileName, String tagsFileName) throws IOException {
+        TagEvaluator evaluator = TagEvaluator.evaluate(this, sentencesFileName, tagsFileName);
+        evaluator.print();
+        return evaluator.accuracy();
     }
     /**
      * Essentially performs the same as fileTagger(), but takes console input rather than files
@@ -348,87 +724,28 @@ public class Viterbi {
         Scanner in = new Scanner(System.in);
         // read input by line
         String line = in.nextLine();
+        // reusable decoder for every line
+        Decoder lineDecoder = createDecoder();
         // while there is still input to read
         while (line != null) {
-            // create an arraylist with the current possible states, adding the start state #
-            ArrayList<String> curStates = new ArrayList();
-            curStates.add("#");
-            // create a map that maps from states to scores, adding the start state # and its score 0
-            Map<String, Double> curScores = new HashMap<>();
-            curScores.put("#", 0.0);
-            // initialize a map that will allow tracing back along the best possible path of tags
-            ArrayList<Map<String, String>> backTrack = new ArrayList<>();
-            // create an arraylist to hold potential next states
-            ArrayList<String> nextStates = new ArrayList<>();
+            // pick up any updates to the model
+            refresh();
+            if (!isCurrent(lineDecoder)) {
+                lineDecoder = newDecoder();
+            }
             // split line up by spaces
             String[] pieces = line.split(" ");
-            // loop over words
-            for (int i = 0; i < pieces.length; i++) {
-                // create a numbered map entry for each word
-                backTrack.add(i, new HashMap<>());
-                // initialize map for next scores
-                HashMap<String, Double> nextScores = new HashMap<>();
-                // loop over current possible states
-                for (String curState : curStates) {
-                    // initialize arraylist for potential next states
-                    nextStates = new ArrayList();
-                    // if part of speech has been seen before
-                    if (POStoTransition.containsKey(curState)) {
-                        // loop over possible transitions
-                        for (String nextState : POStoTransition.get(curState).keySet()) {
-                            // add each possible next state to next states
-                            nextStates.add(nextState);
-                            // declare a double for the score of each possible next state
-                            double nextScore;
-                            // calculate the score by adding the score of the current state, the transition score, and the observation score
-                            if (!wordToPOS.containsKey(pieces[i]) || !wordToPOS.get(pieces[i]).containsKey(nextState)) {
-                                // used final variable as observation score if word is new
-                                nextScore = curScores.get(curState) + POStoTransition.get(curState).get(nextState) + UNOBSERVED;
-                            } else {
-                                nextScore = curScores.get(curState) + POStoTransition.get(curState).get(nextState) + wordToPOS.get(pieces[i]).get(nextState);
-                            }
-                            // if next scores doesn't have any scores for the next state or if the score is better than previous scores
-                            if (!nextScores.containsKey(nextState) || nextScore > nextScores.get(nextState)) {
-                                // add it to next scores
-                                nextScores.put(nextState, nextScore);
-                                // add the current and previous state to backtrack to remember how we got there
-                                backTrack.get(i).put(nextState,curState);
-                            }
-                        }
-                    }
-                }
-                // make potential next states and scores the current possible states and scores
-                curStates = nextStates;
-                curScores = nextScores;
-            }
-            // initialize current tag to empty
-            ArrayList<String> result = new ArrayList();
-            String tag = "";
-            // make the best score worse than it ever will be for any state
-            Double score = -1000.0;
-            // loop over scores for current tag
-            for (String curTag : curScores.keySet()) {
-                // if the tags score is better than the previous best score
-                if (curScores.get(curTag) > score) {
-                    // update the score
-                    score = curScores.get(curTag);
-                    // and the tag
-                    tag = curTag;
+            // decode the line
+            int[] path = decode(lineDecoder, pieces);
+            // print out tags
+            StringBuilder result = new StringBuilder("[");
+            for (int k = 0; k < pieces.length; k++) {
+                if (k > 0) {
+                    result.append(", ");
                 }
+                result.append(lineDecoder.model().tagName(path[k]));
             }
-            // store that tag as the previous one
-            String prevTag = tag;
-            // loop over backtrack, starting at the end
-            for (int k = backTrack.size() - 1; k >= 0; k--) {
-                // add the current tag to the front of the result list
-                result.add(0, tag);
-                // add the tag that got us to that tag
-                prevTag = backTrack.get(k).get(tag);
-                // work backwards, updating tag to previous
-                tag = prevTag;
-            }
-            // print out tags
-            System.out.println(result);
+            System.out.println(result.append("]"));
             // update line to the next input the user gives
             line = in.nextLine();
         }
@@ -436,9 +753,7 @@ public class Viterbi {
 
     public static void main(String[] args) throws IOException {
         Viterbi v = new Viterbi("inputs/brown-train-sentences.txt","inputs/brown-train-tags.txt");
-        ArrayList foundTags = v.fileTagger("inputs/brown-test-sentences.txt");
-        ArrayList realTags = getWordsOrTags("inputs/brown-test-tags.txt", true);
-        v.testAccuracy(foundTags,realTags);
+        v.evaluate("inputs/brown-test-sentences.txt", "inputs/brown-test-tags.txt");
         v.inputTagger();
     }
 }
@@ -0,0 +1,123 @@
+import java.util.Arrays;
+
+/**
+ * Compact set of words, each interned to a contiguous int id. Rather than a String and a map entry per word,
+ * every word's chars live back to back in one shared array and are found through an open addressing table of
+ * ids, so a large vocabulary costs a few ints plus its chars per word. Looking a word up allocates nothing.
+ */
+public class Vocabulary {
+
+    // every word's chars, back to back
+    private char[] chars = new char[1024];
+    // number of chars in use
+    private int numChars;
+    // word k's chars run from offsets[k] to offsets[k + 1]
+    private int[] offsets = new int[65];
+    // hash code of each word, kept so the table can grow without rehashing strings
+    private int[] hashes = new int[64];
+    // number of words
+    private int size;
+    // open addressing table, each slot 0 when empty or 1 + the id of the word stored there
+    private int[] table = new int[128];
+
+    /**
+     * Number of words
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Id of a word, or -1 if it isn't in the vocabulary
+     */
+    public int id(String word) {
+        int hash = word.hashCode();
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(id, word)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Id of a word, adding it with the next free id if it isn't in the vocabulary yet
+     */
+    public int add(String word) {
+        int hash = word.hashCode();
+        int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(id, word)) {
+                return id;
+            }
+        }
+        // copy the word into the char array
+        if (numChars + word.length() > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, numChars + word.length()));
+        }
+        word.getChars(0, word.length(), chars, numChars);
+        numChars += word.length();
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int id = size++;
+        hashes[id] = hash;
+        offsets[id + 1] = numChars;
+        table[slot] = id + 1;
+        // keep the table at most half full
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * The word with the given id, as a new String
+     */
+    public String word(int id) {
+        return new String(chars, offsets[id], offsets[id + 1] - offsets[id]);
+    }
+
+    /**
+     * Whether the stored word with the given id is equal to a string
+     */
+    private boolean matches(int id, String word) {
+        int from = offsets[id];
+        if (offsets[id + 1] - from != word.length()) {
+            return false;
+        }
+        for (int c = 0; c < word.length(); c++) {
+            if (chars[from + c] != word.charAt(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the table with a new number of slots
+     */
+    private void rehash(int slots) {
+        table = new int[slots];
+        int mask = slots - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Mixes the high bits of a hash code into the low ones, since the table size is a power of two
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}